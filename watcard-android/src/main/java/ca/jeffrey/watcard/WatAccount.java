@@ -5,17 +5,25 @@ import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 import org.threeten.bp.LocalDateTime;
-import org.threeten.bp.format.DateTimeFormatter;
 import org.threeten.bp.temporal.ChronoUnit;
+import org.threeten.bp.temporal.TemporalAmount;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.CookieManager;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.FormBody;
-import okhttp3.JavaNetCookieJar;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -27,6 +35,11 @@ public class WatAccount {
     // Number of balance types
     private final int BALANCE_TYPES = 12;
 
+    // Request paths, relative to the session's base URL
+    private static final String PERSONAL_PATH = "/OneWeb/Account/Personal";
+    private static final String BALANCE_PATH = "/OneWeb/Financial/Balances";
+    static final String TRANSACTIONS_PATH = "/OneWeb/Financial/TransactionsPass";
+
     // Main fields
     private WatSession session;
     private String account;
@@ -45,6 +58,41 @@ public class WatAccount {
     private String address;
     private String photo;
 
+    // Executor on which asynchronous results are delivered
+    private Executor callbackExecutor = WatFuture.DIRECT_EXECUTOR;
+
+    // Caches in front of the Balances and Personal pages, disabled until a TTL is set
+    private final WatCache<List<WatBalance>> balanceCache = new WatCache<>(new WatCache.Loader<List<WatBalance>>() {
+        @Override
+        public WatFuture<List<WatBalance>> load() {
+            return enqueue(session.newRequest(session.url(BALANCE_PATH)).build(), balanceParser,
+                    WatFuture.DIRECT_EXECUTOR);
+        }
+    });
+    private final WatCache<WatAccount> personalInfoCache = new WatCache<>(new WatCache.Loader<WatAccount>() {
+        @Override
+        public WatFuture<WatAccount> load() {
+            return enqueue(session.newRequest(session.url(PERSONAL_PATH)).build(), personalInfoParser,
+                    WatFuture.DIRECT_EXECUTOR);
+        }
+    });
+
+    // Records every loaded set of balances, null to disable
+    private volatile WatBalanceHistory balanceHistory;
+
+    // Keeps downloaded photos, null to download the photo on every call
+    private volatile WatPhotoCache photoCache;
+
+    // Logging in again once the server session expires; sessionGeneration counts successful re-logins
+    private final Object reloginLock = new Object();
+    private volatile boolean autoRelogin = true;
+    private volatile int sessionGeneration;
+    private volatile int reloginAttempts;
+
+    // Transaction queries longer than shardWindow are split into windows, null to disable
+    private TemporalAmount shardWindow;
+    private int shardParallelism = 1;
+
     /**
      * Constructor
      *
@@ -62,7 +110,8 @@ public class WatAccount {
     }
 
     /**
-     * Constructor
+     * Constructor. Does not block; a new session starts connecting in the background right away, so creating the
+     * account early warms up the connection used by {@link #login()}.
      *
      * @param account  student id
      * @param password associated password
@@ -84,6 +133,34 @@ public class WatAccount {
         login();
     }
 
+    /**
+     * Resumes the session saved in {@code file} if the server still accepts it, which costs a single request.
+     * Otherwise starts a new session, logs in and saves it to {@code file} for next time.
+     *
+     * @param file       session file
+     * @param passphrase passphrase the session file is encrypted with
+     * @return true if the saved session was resumed, false if a new one was started
+     */
+    public boolean resumeSession(File file, char[] passphrase) {
+        WatSession saved = WatSession.restore(file, passphrase);
+        if (saved != null && saved.isValid()) {
+            session = saved;
+            return true;
+        }
+
+        session = new WatSession();
+        int code = login();
+        if (code >= 200 && code < 300) {
+            try {
+                session.save(file, passphrase);
+            }
+            catch (IOException ie) {
+                ie.printStackTrace();
+            }
+        }
+        return false;
+    }
+
     /**
      * Logs user into WatCard site by initiating a POST request containing a {@code __RequestVerificationToken} and user
      * account details. Uses a {@code WatSession} to store cookies and verification token.
@@ -92,28 +169,33 @@ public class WatAccount {
      */
     public int login() {
         // Request URL
-        final String LOGIN_URL = "https://watcard.uwaterloo.ca/OneWeb/Account/LogOn";
+        final String LOGIN_URL = session.url(WatSession.LOGIN_PATH);
+
+        // Waits for the session's token if it is still being fetched
+        String verificationToken = session.getVerificationToken();
+        if (verificationToken == null) {
+            return -1;
+        }
 
         // Build parameters
         FormBody.Builder formBuilder = new FormBody.Builder();
-        formBuilder.add("__RequestVerificationToken", session.getVerificationToken());
+        formBuilder.add("__RequestVerificationToken", verificationToken);
         formBuilder.add("AccountMode", "0"); // default value
         formBuilder.add("Account", account);
         formBuilder.add("Password", new String(password));
 
         RequestBody formBody = formBuilder.build();
-        Request request = new Request.Builder()
-                .url(LOGIN_URL)
+        Request request = session.newRequest(LOGIN_URL)
                 .post(formBody)
                 .build();
 
-        CookieManager cookieManager = session.getCookieManager();
-        OkHttpClient client = new OkHttpClient.Builder()
-                .cookieJar(new JavaNetCookieJar(cookieManager))
-                .build();
+        OkHttpClient client = session.getClient();
 
         try {
             Response response = client.newCall(request).execute();
+            // Body is not needed, release the connection back to the pool
+            response.close();
+
             if (!response.isSuccessful()) {
                 return response.code();
             }
@@ -134,17 +216,59 @@ public class WatAccount {
      * Retrieves user's account information stores it in {@code WatAccount} fields.
      */
     public void loadPersonalInfo() {
-        final String BASE_URL = "https://watcard.uwaterloo.ca";
-        final String PERSONAL_URL = BASE_URL + "/OneWeb/Account/Personal";
+        loadPersonalInfo(false);
+    }
 
-        CookieManager cookieManager = session.getCookieManager();
-        OkHttpClient client = new OkHttpClient.Builder()
-                .cookieJar(new JavaNetCookieJar(cookieManager))
-                .build();
+    /**
+     * Retrieves user's account information stores it in {@code WatAccount} fields. If the personal info cache is
+     * enabled, recently loaded information is kept instead, see {@link #getPersonalInfoCache()}.
+     *
+     * @param forceRefresh true to load the information even if the cached copy is still fresh
+     */
+    public void loadPersonalInfo(boolean forceRefresh) {
+        if (personalInfoCache.isEnabled()) {
+            await(personalInfoCache.get(forceRefresh, WatFuture.DIRECT_EXECUTOR));
+            return;
+        }
 
         try {
-            Request request = new Request.Builder().url(PERSONAL_URL).build();
-            Response response = client.newCall(request).execute();
+            execute(session.newRequest(session.url(PERSONAL_PATH)).build(), personalInfoParser);
+        }
+        catch (IOException ie) {
+            ie.printStackTrace();
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #loadPersonalInfo()}.
+     *
+     * @return future completed with this account once its information fields are updated
+     */
+    public WatFuture<WatAccount> loadPersonalInfoAsync() {
+        return loadPersonalInfoAsync(false);
+    }
+
+    /**
+     * Asynchronous version of {@link #loadPersonalInfo(boolean)}.
+     *
+     * @param forceRefresh true to load the information even if the cached copy is still fresh
+     * @return future completed with this account once its information fields are updated
+     */
+    public WatFuture<WatAccount> loadPersonalInfoAsync(boolean forceRefresh) {
+        return personalInfoFuture(forceRefresh, callbackExecutor);
+    }
+
+    private WatFuture<WatAccount> personalInfoFuture(boolean forceRefresh, Executor executor) {
+        if (personalInfoCache.isEnabled()) {
+            return personalInfoCache.get(forceRefresh, executor);
+        }
+        return enqueue(session.newRequest(session.url(PERSONAL_PATH)).build(), personalInfoParser, executor);
+    }
+
+    // Stores the information on the Personal page in this account's fields
+    private final ResponseParser<WatAccount> personalInfoParser = new ResponseParser<WatAccount>() {
+        @Override
+        public WatAccount parse(Response response) throws IOException {
             String htmlResponse = response.body().string();
 
             Document doc = Jsoup.parse(htmlResponse);
@@ -163,14 +287,96 @@ public class WatAccount {
 
             // Get photo URL
             Element jpg = doc.select(".ow-id-container.hidden-xs").first().select("[data-original]").first();
-            photo = BASE_URL + jpg.attr("data-original");
+            photo = session.getBaseUrl() + jpg.attr("data-original");
 
-            if (photo.equals(BASE_URL))
+            if (photo.equals(session.getBaseUrl()))
                 photo = "";
+
+            return WatAccount.this;
         }
-        catch (IOException ie) {
-            ie.printStackTrace();
+    };
+
+    /**
+     * Downloads the account photo through this account's session. If a photo cache is set, a recently confirmed copy
+     * is returned without a request and an older one is revalidated, see {@link #setPhotoCache(WatPhotoCache)}.
+     *
+     * @return account photo, or null if the account has no photo or {@link #loadPersonalInfo()} has not been called
+     * @throws IOException if the request fails
+     */
+    public WatPhoto loadPhoto() throws IOException {
+        String url = photo;
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+
+        WatPhotoCache cache = photoCache;
+        WatPhoto cached = null;
+        if (cache != null) {
+            WatPhoto fresh = cache.getFresh(url);
+            if (fresh != null) {
+                return fresh;
+            }
+            cached = cache.get(url);
         }
+        return execute(photoRequest(url, cached), photoParser(url, cache, cached));
+    }
+
+    /**
+     * Asynchronous version of {@link #loadPhoto()}. The photo cache is looked up on the calling thread.
+     *
+     * @return future completed with the account photo, or null if there is none
+     */
+    public WatFuture<WatPhoto> loadPhotoAsync() {
+        String url = photo;
+        WatPhotoCache cache = photoCache;
+        WatPhoto fresh = null;
+        if (url != null && !url.isEmpty() && cache != null) {
+            fresh = cache.getFresh(url);
+        }
+        if (url == null || url.isEmpty() || fresh != null) {
+            WatFuture<WatPhoto> future = new WatFuture<>(callbackExecutor);
+            future.complete(fresh);
+            return future;
+        }
+
+        WatPhoto cached = cache != null ? cache.get(url) : null;
+        return enqueue(photoRequest(url, cached), photoParser(url, cache, cached));
+    }
+
+    // Asks for the photo only if it differs from the cached copy
+    private Request photoRequest(String url, WatPhoto cached) {
+        Request.Builder builder = session.newRequest(url);
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                builder.header("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                builder.header("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        return builder.build();
+    }
+
+    private static ResponseParser<WatPhoto> photoParser(final String url, final WatPhotoCache cache,
+                                                        final WatPhoto cached) {
+        return new ResponseParser<WatPhoto>() {
+            @Override
+            public WatPhoto parse(Response response) throws IOException {
+                if (response.code() == 304 && cached != null) {
+                    return cache.revalidated(url, cached);
+                }
+                if (!response.isSuccessful()) {
+                    throw new IOException("Unexpected response " + response.code() + " for the account photo");
+                }
+
+                WatPhoto photo = new WatPhoto(response.body().bytes(), response.header("Content-Type"),
+                        response.header("ETag"), response.header("Last-Modified"), System.currentTimeMillis());
+                if (cache != null) {
+                    cache.downloaded(url, photo);
+                }
+                return photo;
+            }
+        };
     }
 
     /**
@@ -185,44 +391,169 @@ public class WatAccount {
      * Retrieves user's account balances and stores them in {@code balances}, a list of {@code WatBalance}.
      */
     public void loadBalances() {
-        // Request URL
-        final String BALANCE_URL = "https://watcard.uwaterloo.ca/OneWeb/Financial/Balances";
+        loadBalances(false);
+    }
+
+    /**
+     * Retrieves user's account balances and stores them in {@code balances}, a list of {@code WatBalance}. If the
+     * balance cache is enabled, recently loaded balances are kept instead, see {@link #getBalanceCache()}.
+     *
+     * @param forceRefresh true to load the balances even if the cached copy is still fresh
+     */
+    public void loadBalances(boolean forceRefresh) {
+        if (balanceCache.isEnabled()) {
+            await(balanceCache.get(forceRefresh, WatFuture.DIRECT_EXECUTOR));
+            return;
+        }
+
         // Initialize list
         balances = new ArrayList<>();
 
-        CookieManager cookieManager = session.getCookieManager();
-        OkHttpClient client = new OkHttpClient.Builder()
-                .cookieJar(new JavaNetCookieJar(cookieManager))
-                .build();
-
         try {
-            Request request = new Request.Builder().url(BALANCE_URL).build();
-            Response response = client.newCall(request).execute();
-            String htmlResponse = response.body().string();
+            execute(session.newRequest(session.url(BALANCE_PATH)).build(), balanceParser);
+        }
+        catch (IOException ie) {
+            ie.printStackTrace();
+        }
+    }
 
-            Document doc = Jsoup.parse(htmlResponse);
-            // Select rows in the balance table
-            Elements accounts = doc.getElementsByClass("table table-striped ow-table-responsive").first()
-                    .select("tbody").first().select("tr");
+    /**
+     * Asynchronous version of {@link #loadBalances()}.
+     *
+     * @return future completed with the new list of balances once {@code balances} is updated
+     */
+    public WatFuture<List<WatBalance>> loadBalancesAsync() {
+        return loadBalancesAsync(false);
+    }
+
+    /**
+     * Asynchronous version of {@link #loadBalances(boolean)}.
+     *
+     * @param forceRefresh true to load the balances even if the cached copy is still fresh
+     * @return future completed with the new list of balances once {@code balances} is updated
+     */
+    public WatFuture<List<WatBalance>> loadBalancesAsync(boolean forceRefresh) {
+        return balancesFuture(forceRefresh, callbackExecutor);
+    }
+
+    private WatFuture<List<WatBalance>> balancesFuture(boolean forceRefresh, Executor executor) {
+        if (balanceCache.isEnabled()) {
+            return balanceCache.get(forceRefresh, executor);
+        }
+        return enqueue(session.newRequest(session.url(BALANCE_PATH)).build(), balanceParser, executor);
+    }
+
+    // Stores the balances and total on the Balances page in this account's fields
+    private final ResponseParser<List<WatBalance>> balanceParser = new ResponseParser<List<WatBalance>>() {
+        @Override
+        public List<WatBalance> parse(Response response) throws IOException {
+            return parseBalances(response.body().string());
+        }
+    };
+
+    // Parses the Balances page into the balances and total fields
+    private List<WatBalance> parseBalances(String htmlResponse) {
+        List<WatBalance> newBalances = new ArrayList<>();
+
+        Document doc = Jsoup.parse(htmlResponse);
+        // Select rows in the balance table
+        Elements accounts = doc.getElementsByClass("table table-striped ow-table-responsive").first()
+                .select("tbody").first().select("tr");
+
+        // Iterate through each column in the row
+        for (Element balance : accounts) {
+            Elements info = balance.select("td");
+            String id = info.get(0).text();
+            String name = info.get(1).text();
+            float limit = WatFieldParser.parseCents(info.get(2).text()) / 100f;
+            float value = WatFieldParser.parseCents(info.get(3).text()) / 100f;
+            // Add WatBalance to list
+            newBalances.add(new WatBalance(id, name, limit, value));
+        }
+
+        // e.g. "Total: $1,487.15"
+        String totalString = doc.select("span.pull-right").text();
+        balances = newBalances;
+        WatBalanceHistory history = balanceHistory;
+        if (history != null) {
+            history.record(System.currentTimeMillis(), newBalances);
+        }
+        total = WatFieldParser.parseCents(totalString, totalString.indexOf(':') + 1, totalString.length()) / 100f;
 
-            // Iterate through each column in the row
-            for (Element balance : accounts) {
-                Elements info = balance.select("td");
-                String id = info.get(0).text();
-                String name = info.get(1).text();
-                // Remove $ character
-                float limit = Float.parseFloat(info.get(2).text().replaceAll("[$,]", ""));
-                float value = Float.parseFloat(info.get(3).text().replaceAll("[$,]", ""));
-                // Add WatBalance to list
-                balances.add(new WatBalance(id, name, limit, value));
+        return newBalances;
+    }
+
+    /**
+     * Loads the Balances page and updates {@code balances} only if its balance table and total differ from the page
+     * {@code fingerprint} was computed from, so an unchanged page is not parsed.
+     *
+     * @param fingerprint fingerprint returned by the previous call, or 0
+     * @return fingerprint of the page, equal to {@code fingerprint} if nothing changed
+     * @throws IOException if the request fails
+     */
+    long loadBalancesIfChanged(final long fingerprint) throws IOException {
+        return execute(session.newRequest(session.url(BALANCE_PATH)).build(), new ResponseParser<Long>() {
+            @Override
+            public Long parse(Response response) throws IOException {
+                String htmlResponse = response.body().string();
+                long current = fingerprintBalances(htmlResponse);
+                if (current != fingerprint) {
+                    parseBalances(htmlResponse);
+                }
+                return current;
             }
+        });
+    }
 
-            String totalString = doc.select("span.pull-right").text().replaceAll("[[A-Z][a-z]$,:]", "");
-            total = Float.valueOf(totalString);
+    // FNV-1a hash of the balance table and total, ignoring the rest of the page
+    private static long fingerprintBalances(String html) {
+        int start = html.indexOf(WatTableParser.TABLE_CLASS);
+        int tableEnd = start == -1 ? -1 : html.indexOf("</table>", start);
+        int totalEnd = tableEnd == -1 ? -1 : html.indexOf("</span>", tableEnd);
+        if (totalEnd == -1) {
+            start = 0;
+            totalEnd = html.length();
         }
-        catch (IOException ie) {
-            ie.printStackTrace();
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < totalEnd; i++) {
+            hash ^= html.charAt(i);
+            hash *= 0x100000001b3L;
         }
+        // 0 means no fingerprint yet
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Loads personal information and balances in parallel on this account's session. Cached copies are refreshed as
+     * well.
+     *
+     * @return future completed with this account once both have been updated
+     */
+    public WatFuture<WatAccount> refreshAll() {
+        WatFuture<WatAccount> future = new WatFuture<>(callbackExecutor);
+        // Parts complete directly on the dispatcher, only the combined result goes through callbackExecutor
+        whenAll(future,
+                personalInfoFuture(true, WatFuture.DIRECT_EXECUTOR),
+                balancesFuture(true, WatFuture.DIRECT_EXECUTOR));
+        return future;
+    }
+
+    /**
+     * Loads personal information, balances and the transactions from a given date to now in parallel on this
+     * account's session.
+     *
+     * @param begin starting date &amp; time of the transactions
+     * @return future completed with the transactions once personal information and balances have also been updated
+     */
+    public WatFuture<List<WatTransaction>> refreshAll(LocalDateTime begin) {
+        String url = transactionsUrl(begin, LocalDateTime.now(), 0);
+        WatFuture<List<WatTransaction>> future = new WatFuture<>(callbackExecutor);
+        whenAll(future,
+                enqueue(session.newRequest(url).build(), TRANSACTION_PARSER, WatFuture.DIRECT_EXECUTOR),
+                personalInfoFuture(true, WatFuture.DIRECT_EXECUTOR),
+                balancesFuture(true, WatFuture.DIRECT_EXECUTOR));
+        return future;
     }
 
     /**
@@ -367,50 +698,277 @@ public class WatAccount {
      * @return list of WatTransaction
      */
     public List<WatTransaction> getTransactions(String url) {
-        // DateTime format of transactions received from the requested data
-        // Note: This format is different from the DateTime format that is passed in the url itself
-        final DateTimeFormatter RESPONSE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy h:mm:ss a");
+        try {
+            return fetchTransactions(url);
+        }
+        catch (IOException ie) {
+            ie.printStackTrace();
+        }
+        return new ArrayList<>();
+    }
 
-        // Initialize list
-        List<WatTransaction> transactions = new ArrayList<>();
+    /**
+     * Returns a list of transactions from the given url, reporting failures instead of returning an empty list.
+     *
+     * @param url request URL
+     * @return list of WatTransaction
+     * @throws IOException if the request fails
+     */
+    List<WatTransaction> fetchTransactions(String url) throws IOException {
+        return execute(session.newRequest(url).build(), TRANSACTION_PARSER);
+    }
 
-        CookieManager cookieManager = session.getCookieManager();
-        OkHttpClient client = new OkHttpClient.Builder()
-                .cookieJar(new JavaNetCookieJar(cookieManager))
-                .build();
+    /**
+     * Asynchronous version of {@link #getTransactions(String)}.
+     *
+     * @param url request URL
+     * @return future completed with the list of WatTransaction
+     */
+    public WatFuture<List<WatTransaction>> getTransactionsAsync(String url) {
+        return enqueue(session.newRequest(url).build(), TRANSACTION_PARSER);
+    }
 
-        try {
-            Request request = new Request.Builder().url(url).build();
-            Response response = client.newCall(request).execute();
-            String htmlResponse = response.body().string();
+    // Reads the transaction table row by row straight off the response body
+    private static final ResponseParser<List<WatTransaction>> TRANSACTION_PARSER =
+            new ResponseParser<List<WatTransaction>>() {
+                @Override
+                public List<WatTransaction> parse(Response response) throws IOException {
+                    // Initialize list
+                    final List<WatTransaction> transactions = new ArrayList<>();
+
+                    WatTableParser.parse(response.body().source(), new WatTableParser.RowHandler() {
+                        @Override
+                        public boolean onRow(List<String> cells) {
+                            WatTransaction transaction = WatTransaction.fromRow(cells);
+                            if (transaction != null) {
+                                transactions.add(transaction);
+                            }
+                            return true;
+                        }
+                    });
+                    return transactions;
+                }
+            };
+
+    /**
+     * Passes the transactions from the given url to {@code consumer} one at a time as they are parsed, without
+     * collecting them. Once the consumer returns false, the response is closed without reading the rest of it.
+     *
+     * @param url      request URL
+     * @param consumer receives each transaction
+     * @return number of transactions passed to {@code consumer}
+     * @throws IOException if the request fails
+     */
+    public int forEachTransaction(String url, WatTransactionConsumer consumer) throws IOException {
+        return execute(session.newRequest(url).build(), consumerParser(consumer));
+    }
+
+    /**
+     * Passes all transactions completed between two dates to {@code consumer}, newest first, as they are parsed.
+     *
+     * @param begin    starting date &amp; time
+     * @param end      ending date &amp; time
+     * @param consumer receives each transaction
+     * @return number of transactions passed to {@code consumer}
+     * @throws IOException if the request fails
+     */
+    public int forEachTransaction(LocalDateTime begin, LocalDateTime end, WatTransactionConsumer consumer)
+            throws IOException {
+        return forEachTransaction(transactionsUrl(begin, end, 0), consumer);
+    }
 
-            if (!htmlResponse.contains("No transactions found!")) {
-                Document doc = Jsoup.parse(htmlResponse);
-                // Select table of transactions
-                Elements row = doc.getElementsByClass("table table-striped ow-table-responsive").first()
-                        .select("tbody").first().select("tr");
-
-                for (Element transaction : row) {
-                    // Elements containing transaction information
-                    Elements data = transaction.select("td");
-                    // Store selected data in corresponding fields
-                    LocalDateTime dateTime = LocalDateTime.parse(data.get(0).text(), RESPONSE_FORMAT);
-                    float amount = Float.parseFloat(data.get(1).text().replaceAll("[$,]", ""));
-                    int account = Integer.parseInt(data.get(2).text());
-                    int unit = Integer.valueOf(data.get(3).text());
-                    String type = data.get(4).text();
-                    String terminal = data.get(5).text();
-                    // Add resulting WatTransaction to list
-                    transactions.add(new WatTransaction(dateTime, amount, account, unit, type, terminal));
+    /**
+     * Returns the transactions matching a query, newest first. Rows that do not match are skipped as they are parsed.
+     *
+     * @param query transactions to return
+     * @return list of matching WatTransaction
+     */
+    public List<WatTransaction> getTransactions(WatTransactionQuery query) {
+        final List<WatTransaction> transactions = new ArrayList<>();
+        try {
+            forEachTransaction(query, new WatTransactionConsumer() {
+                @Override
+                public boolean accept(WatTransaction transaction) {
+                    transactions.add(transaction);
+                    return true;
                 }
-            }
+            });
         }
         catch (IOException ie) {
             ie.printStackTrace();
+            return new ArrayList<>();
         }
         return transactions;
     }
 
+    /**
+     * Asynchronous version of {@link #getTransactions(WatTransactionQuery)}.
+     *
+     * @param query transactions to return
+     * @return future completed with the list of matching WatTransaction
+     */
+    public WatFuture<List<WatTransaction>> getTransactionsAsync(final WatTransactionQuery query) {
+        return enqueue(session.newRequest(query.url(this)).build(), new ResponseParser<List<WatTransaction>>() {
+            @Override
+            public List<WatTransaction> parse(Response response) throws IOException {
+                final List<WatTransaction> transactions = new ArrayList<>();
+                parseMatching(response, query, new WatTransactionConsumer() {
+                    @Override
+                    public boolean accept(WatTransaction transaction) {
+                        transactions.add(transaction);
+                        return true;
+                    }
+                });
+                return transactions;
+            }
+        });
+    }
+
+    /**
+     * Passes the transactions matching a query to {@code consumer}, newest first, as they are parsed. The response is
+     * closed without reading the rest of it once the query's limit is reached or the consumer returns false.
+     *
+     * @param query    transactions to pass
+     * @param consumer receives each matching transaction
+     * @return number of transactions passed to {@code consumer}
+     * @throws IOException if the request fails
+     */
+    public int forEachTransaction(final WatTransactionQuery query, final WatTransactionConsumer consumer)
+            throws IOException {
+        return execute(session.newRequest(query.url(this)).build(), new ResponseParser<Integer>() {
+            @Override
+            public Integer parse(Response response) throws IOException {
+                return parseMatching(response, query, consumer);
+            }
+        });
+    }
+
+    // Checks each row's cells against the query and only builds a WatTransaction for the rows that match
+    private static int parseMatching(Response response, WatTransactionQuery query, WatTransactionConsumer consumer)
+            throws IOException {
+        WatTableParser parser = new WatTableParser(response.body().source());
+        int limit = query.getLimit();
+        int count = 0;
+        List<? extends CharSequence> cells;
+        while ((limit == 0 || count < limit) && (cells = parser.nextCells()) != null) {
+            if (cells.size() < WatTransaction.COLUMNS || !query.matches(cells)) {
+                continue;
+            }
+            WatTransaction transaction = WatTransaction.fromRow(cells);
+            if (transaction == null) {
+                continue;
+            }
+            count++;
+            if (!consumer.accept(transaction)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Asynchronous version of {@link #forEachTransaction(String, WatTransactionConsumer)}. The consumer is called on
+     * the dispatcher thread; cancelling the future cancels the request.
+     *
+     * @param url      request URL
+     * @param consumer receives each transaction
+     * @return future completed with the number of transactions passed to {@code consumer}
+     */
+    public WatFuture<Integer> forEachTransactionAsync(String url, WatTransactionConsumer consumer) {
+        return enqueue(session.newRequest(url).build(), consumerParser(consumer));
+    }
+
+    private static ResponseParser<Integer> consumerParser(final WatTransactionConsumer consumer) {
+        return new ResponseParser<Integer>() {
+            @Override
+            public Integer parse(Response response) throws IOException {
+                final int[] count = new int[1];
+                WatTableParser.parse(response.body().source(), new WatTableParser.RowHandler() {
+                    @Override
+                    public boolean onRow(List<String> cells) {
+                        WatTransaction transaction = WatTransaction.fromRow(cells);
+                        if (transaction == null) {
+                            return true;
+                        }
+                        count[0]++;
+                        return consumer.accept(transaction);
+                    }
+                });
+                return count[0];
+            }
+        };
+    }
+
+    /**
+     * Opens the transactions from the given url for reading one at a time. Rows are parsed as the iterator advances,
+     * so only the part of the response read so far is downloaded. The iterator must be closed, which also stops the
+     * download if it was not read to the end.
+     *
+     * @param url request URL
+     * @return iterator over the transactions, newest first
+     * @throws IOException if the request fails
+     */
+    public WatTransactionIterator openTransactions(String url) throws IOException {
+        Response response = open(session.newRequest(url).build());
+        return new WatTransactionIterator(response, session.getMetrics());
+    }
+
+    /**
+     * Opens all transactions completed between two dates for reading one at a time, see
+     * {@link #openTransactions(String)}.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return iterator over the transactions, newest first
+     * @throws IOException if the request fails
+     */
+    public WatTransactionIterator openTransactions(LocalDateTime begin, LocalDateTime end) throws IOException {
+        return openTransactions(transactionsUrl(begin, end, 0));
+    }
+
+    /**
+     * Appends the transactions from the given url to a {@code WatTransactionTable}. Rows are written straight into the
+     * table's columns as they are parsed, without creating a {@code WatTransaction} per row.
+     *
+     * @param url   request URL
+     * @param table table to append to
+     * @return number of rows appended
+     */
+    public int loadTransactions(String url, final WatTransactionTable table) {
+        final int before = table.size();
+        try {
+            execute(session.newRequest(url).build(), new ResponseParser<Integer>() {
+                @Override
+                public Integer parse(Response response) throws IOException {
+                    WatTableParser.parse(response.body().source(), new WatTableParser.RowHandler() {
+                        @Override
+                        public boolean onRow(List<String> cells) {
+                            table.addRow(cells);
+                            return true;
+                        }
+                    });
+                    return table.size() - before;
+                }
+            });
+        }
+        catch (IOException ie) {
+            ie.printStackTrace();
+        }
+        return table.size() - before;
+    }
+
+    /**
+     * Appends all transactions completed between two dates to a {@code WatTransactionTable}.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @param table table to append to
+     * @return number of rows appended
+     */
+    public int loadTransactions(LocalDateTime begin, LocalDateTime end, WatTransactionTable table) {
+        return loadTransactions(transactionsUrl(begin, end, 0), table);
+    }
+
     /**
      * Returns a list of transactions from a given date to now.
      *
@@ -418,12 +976,7 @@ public class WatAccount {
      * @return list of WatTransactions completed from {@code now} to now
      */
     public List<WatTransaction> getTransactions(LocalDateTime begin) {
-        String formattedBegin = WatTransaction.DATE_FORMAT.format(begin);
-        String formattedToday = WatTransaction.DATE_FORMAT.format(LocalDateTime.now());
-        String url = WatTransaction.BASE_URL + String.format(Locale.CANADA, "?dateFrom=%s&dateTo=%s&returnRows=0",
-                formattedBegin, formattedToday); // returnRows = 0 returns all transactions within those dates
-
-        return getTransactions(url);
+        return getTransactions(begin, LocalDateTime.now());
     }
 
     /**
@@ -435,12 +988,7 @@ public class WatAccount {
      * @return List of the latest {@code quantity} WatTransaction from {@code begin} to now
      */
     public List<WatTransaction> getTransactions(LocalDateTime begin, int quantity) {
-        String formattedBegin = WatTransaction.DATE_FORMAT.format(begin);
-        String formattedToday = WatTransaction.DATE_FORMAT.format(LocalDateTime.now());
-        String url = WatTransaction.BASE_URL + String.format(Locale.CANADA, "?dateFrom=%s&dateTo=%s&returnRows=%d",
-                formattedBegin, formattedToday, quantity);
-
-        return getTransactions(url);
+        return getTransactions(transactionsUrl(begin, LocalDateTime.now(), quantity));
     }
 
     /**
@@ -451,12 +999,13 @@ public class WatAccount {
      * @return List of all WatTransaction completed between {@code begin} and {@code end}
      */
     public List<WatTransaction> getTransactions(LocalDateTime begin, LocalDateTime end) {
-        String formattedBegin = WatTransaction.DATE_FORMAT.format(begin);
-        String formattedEnd = WatTransaction.DATE_FORMAT.format(end);
-        String url = WatTransaction.BASE_URL + String.format(Locale.CANADA, "?dateFrom=%s&dateTo=%s&returnRows=0",
-                formattedBegin, formattedEnd);
-
-        return getTransactions(url);
+        try {
+            return fetchTransactions(begin, end);
+        }
+        catch (IOException ie) {
+            ie.printStackTrace();
+        }
+        return new ArrayList<>();
     }
 
     /**
@@ -469,12 +1018,7 @@ public class WatAccount {
      * @return List of the latest {@code quantity} WatTransaction from {@code begin} to {@code end}
      */
     public List<WatTransaction> getTransactions(LocalDateTime begin, LocalDateTime end, int quantity) {
-        String formattedBegin = WatTransaction.DATE_FORMAT.format(begin);
-        String formattedEnd = WatTransaction.DATE_FORMAT.format(end);
-        String url = WatTransaction.BASE_URL + String.format(Locale.CANADA, "?dateFrom=%s&dateTo=%s&returnRows=%d",
-                formattedBegin, formattedEnd, quantity);
-
-        return getTransactions(url);
+        return getTransactions(transactionsUrl(begin, end, quantity));
     }
 
     /**
@@ -486,23 +1030,426 @@ public class WatAccount {
      * @return a list of WatTransactions completed within the last {@code begin} days
      */
     public List<WatTransaction> getLastDaysTransactions(int days, boolean exact) {
-        String formattedBegin;
-        String formattedEnd;
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime begin = now.minusDays(days);
 
-        if (exact) {
-            formattedBegin = WatTransaction.DATE_FORMAT.format(LocalDateTime.now().minusDays(days));
-            formattedEnd = WatTransaction.DATE_FORMAT.format(LocalDateTime.now());
+        if (!exact) {
+            begin = begin.truncatedTo(ChronoUnit.DAYS);
         }
-        else {
-            formattedBegin = WatTransaction.DATE_FORMAT.format(LocalDateTime.now().minusDays(days).
-                    truncatedTo(ChronoUnit.DAYS));
-            formattedEnd = WatTransaction.DATE_FORMAT.format(LocalDateTime.now());
+        return getTransactions(begin, now);
+    }
+
+    /**
+     * Returns all transactions completed between two dates, reporting failures instead of returning an empty list.
+     * If a shard window is set and the range is longer than it, the range is fetched in windows.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return List of all WatTransaction completed between {@code begin} and {@code end}
+     * @throws IOException if any request fails
+     */
+    List<WatTransaction> fetchTransactions(LocalDateTime begin, LocalDateTime end) throws IOException {
+        TemporalAmount window = shardWindow;
+        if (window == null || !begin.plus(window).isBefore(end)) {
+            return fetchTransactions(transactionsUrl(begin, end, 0));
+        }
+
+        // Split into windows that share no second, so no transaction is returned twice
+        List<String> urls = new ArrayList<>();
+        LocalDateTime windowBegin = begin;
+        while (!windowBegin.isAfter(end)) {
+            LocalDateTime next = windowBegin.plus(window);
+            LocalDateTime windowEnd = next.isAfter(end) ? end : next.minusSeconds(1);
+            urls.add(transactionsUrl(windowBegin, windowEnd, 0));
+            windowBegin = next;
+        }
+        // Newest window first, matching the order of a single request
+        Collections.reverse(urls);
+
+        return fetchShards(urls);
+    }
+
+    /**
+     * Fetches each URL with at most {@code shardParallelism} requests in flight and concatenates the results in URL
+     * order.
+     */
+    private List<WatTransaction> fetchShards(final List<String> urls) throws IOException {
+        final int count = urls.size();
+        final List<List<WatTransaction>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            results.add(null);
+        }
+        final List<WatFuture<List<WatTransaction>>> futures = new ArrayList<>();
+        final CountDownLatch remaining = new CountDownLatch(count);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Each completed shard starts the next one, keeping the number of calls in flight bounded
+        final Runnable[] startNext = new Runnable[1];
+        startNext[0] = new Runnable() {
+            @Override
+            public void run() {
+                final int index = next.getAndIncrement();
+                if (index >= count || failure.get() != null) {
+                    return;
+                }
+
+                WatFuture<List<WatTransaction>> future = enqueue(session.newRequest(urls.get(index)).build(),
+                        TRANSACTION_PARSER, WatFuture.DIRECT_EXECUTOR);
+                synchronized (futures) {
+                    futures.add(future);
+                }
+                future.addCallback(new WatCallback<List<WatTransaction>>() {
+                    @Override
+                    public void onSuccess(List<WatTransaction> result) {
+                        synchronized (results) {
+                            results.set(index, result);
+                        }
+                        remaining.countDown();
+                        startNext[0].run();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failure.compareAndSet(null, t);
+                        // Release the waiting thread right away
+                        while (remaining.getCount() > 0) {
+                            remaining.countDown();
+                        }
+                    }
+                });
+            }
+        };
+
+        for (int i = 0; i < Math.min(shardParallelism, count); i++) {
+            startNext[0].run();
+        }
+
+        try {
+            remaining.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        }
+
+        Throwable t = failure.get();
+        if (t != null) {
+            synchronized (futures) {
+                for (WatFuture<List<WatTransaction>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof InterruptedException) {
+                throw new InterruptedIOException("Interrupted while fetching transactions");
+            }
+            throw new IOException(t);
+        }
+
+        List<WatTransaction> transactions = new ArrayList<>();
+        synchronized (results) {
+            for (List<WatTransaction> result : results) {
+                transactions.addAll(result);
+            }
+        }
+        return transactions;
+    }
+
+    /**
+     * Asynchronous version of {@link #getTransactions(LocalDateTime)}.
+     *
+     * @param begin starting date &amp; time
+     * @return future completed with the WatTransactions completed from {@code begin} to now
+     */
+    public WatFuture<List<WatTransaction>> getTransactionsAsync(LocalDateTime begin) {
+        return getTransactionsAsync(transactionsUrl(begin, LocalDateTime.now(), 0));
+    }
+
+    /**
+     * Asynchronous version of {@link #getTransactions(LocalDateTime, int)}.
+     *
+     * @param begin    starting date &amp; time
+     * @param quantity number of transactions to display
+     * @return future completed with the latest {@code quantity} WatTransaction from {@code begin} to now
+     */
+    public WatFuture<List<WatTransaction>> getTransactionsAsync(LocalDateTime begin, int quantity) {
+        return getTransactionsAsync(transactionsUrl(begin, LocalDateTime.now(), quantity));
+    }
+
+    /**
+     * Asynchronous version of {@link #getTransactions(LocalDateTime, LocalDateTime)}.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return future completed with all WatTransaction completed between {@code begin} and {@code end}
+     */
+    public WatFuture<List<WatTransaction>> getTransactionsAsync(LocalDateTime begin, LocalDateTime end) {
+        return getTransactionsAsync(transactionsUrl(begin, end, 0));
+    }
+
+    /**
+     * Asynchronous version of {@link #getTransactions(LocalDateTime, LocalDateTime, int)}.
+     *
+     * @param begin    starting date &amp; time
+     * @param end      ending date &amp; time
+     * @param quantity number of transactions to display
+     * @return future completed with the latest {@code quantity} WatTransaction from {@code begin} to {@code end}
+     */
+    public WatFuture<List<WatTransaction>> getTransactionsAsync(LocalDateTime begin, LocalDateTime end,
+                                                                int quantity) {
+        return getTransactionsAsync(transactionsUrl(begin, end, quantity));
+    }
+
+    /**
+     * Builds a {@code TransactionsPass} URL on the session's server.
+     *
+     * @param begin    starting date &amp; time
+     * @param end      ending date &amp; time
+     * @param quantity number of transactions to return, 0 for all transactions within those dates
+     * @return request URL
+     */
+    String transactionsUrl(LocalDateTime begin, LocalDateTime end, int quantity) {
+        String formattedBegin = WatTransaction.DATE_FORMAT.format(begin);
+        String formattedEnd = WatTransaction.DATE_FORMAT.format(end);
+        return session.url(TRANSACTIONS_PATH) + String.format(Locale.CANADA, "?dateFrom=%s&dateTo=%s&returnRows=%d",
+                formattedBegin, formattedEnd, quantity);
+    }
+
+    /**
+     * Waits for a future, reporting failures the same way as the blocking requests.
+     */
+    private static void await(WatFuture<?> future) {
+        try {
+            future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Turns a response into a result. Implementations must not close the response.
+     */
+    private interface ResponseParser<T> {
+        T parse(Response response) throws IOException;
+    }
+
+    /**
+     * Runs a request on the calling thread and parses its response. If the session has expired, logs in again and
+     * retries once.
+     */
+    private <T> T execute(Request request, ResponseParser<T> parser) throws IOException {
+        Response response = open(request);
+        try {
+            return parse(response, parser);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Runs a request on the calling thread and returns its response unread. If the session has expired, logs in again
+     * and retries once. The caller must close the response.
+     */
+    private Response open(Request request) throws IOException {
+        int generation = sessionGeneration;
+        Response response = session.getClient().newCall(request).execute();
+        if (WatSession.isLoginPage(response)) {
+            response.close();
+            if (!relogin(generation)) {
+                throw new WatSessionExpiredException("Session expired and could not log in again");
+            }
+            session.getMetrics().onRetry(WatMetricsInterceptor.endpointOf(request.url()));
+            response = session.getClient().newCall(request).execute();
+            if (WatSession.isLoginPage(response)) {
+                response.close();
+                throw new WatSessionExpiredException("Session expired right after logging in again");
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Enqueues a request on the session's dispatcher and parses its response on the dispatcher thread. If the session
+     * has expired, logs in again and retries once.
+     */
+    private <T> WatFuture<T> enqueue(Request request, ResponseParser<T> parser) {
+        return enqueue(request, parser, callbackExecutor);
+    }
+
+    private <T> WatFuture<T> enqueue(Request request, ResponseParser<T> parser, Executor executor) {
+        WatFuture<T> future = new WatFuture<>(executor);
+        enqueue(request, parser, future, true);
+        return future;
+    }
+
+    private <T> void enqueue(final Request request, final ResponseParser<T> parser, final WatFuture<T> future,
+                             final boolean retry) {
+        final int generation = sessionGeneration;
+        OkHttpClient client = session.getClient();
+        Call call = client.newCall(request);
+        future.addCall(call);
+
+        WatScheduler.enqueue(client, call, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.fail(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    if (WatSession.isLoginPage(response)) {
+                        response.close();
+                        // Logging in again blocks this dispatcher thread, it is not counted against the call limits
+                        if (retry && relogin(generation)) {
+                            session.getMetrics().onRetry(WatMetricsInterceptor.endpointOf(request.url()));
+                            enqueue(request, parser, future, false);
+                        }
+                        else {
+                            future.fail(new WatSessionExpiredException("Session expired and could not log in again"));
+                        }
+                        return;
+                    }
+                    future.complete(parse(response, parser));
+                }
+                catch (Exception e) {
+                    // Parsing errors must not leave the future pending
+                    future.fail(e);
+                }
+                finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses a response, reporting how long it took and how many rows it produced to the session's metrics.
+     */
+    private <T> T parse(Response response, ResponseParser<T> parser) throws IOException {
+        WatMetrics metrics = session.getMetrics();
+        String endpoint = WatMetricsInterceptor.endpointOf(response.request().url());
+        long start = System.nanoTime();
+        try {
+            T result = parser.parse(response);
+            metrics.onParse(endpoint, System.nanoTime() - start, rowsOf(result));
+            return result;
+        }
+        catch (IOException | RuntimeException e) {
+            metrics.onFailure(endpoint, e);
+            throw e;
+        }
+    }
+
+    // Lists count their elements, parsers that fill a table return the number of rows added
+    private static int rowsOf(Object result) {
+        if (result instanceof List) {
+            return ((List<?>) result).size();
+        }
+        else if (result instanceof Integer) {
+            return (Integer) result;
+        }
+        return 1;
+    }
+
+    /**
+     * Logs in again after a request made in session {@code generation} got the login page back. Only one thread logs
+     * in at a time: threads that find the session expired while another one is logging in wait for it and share its
+     * outcome instead of logging in themselves.
+     *
+     * @param generation value of {@code sessionGeneration} when the failed request was sent
+     * @return true if the session was renewed and the request should be retried
+     */
+    private boolean relogin(int generation) {
+        if (!autoRelogin) {
+            return false;
+        }
+
+        int attempts = reloginAttempts;
+        synchronized (reloginLock) {
+            if (sessionGeneration != generation) {
+                // Someone else already logged in again since the request was sent
+                return true;
+            }
+            if (reloginAttempts != attempts) {
+                // A login ran while this thread was waiting and failed, don't try again right away
+                return false;
+            }
+
+            reloginAttempts++;
+            session.reset();
+            int code = login();
+            if (code >= 200 && code < 300) {
+                sessionGeneration++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Completes {@code future} with the result of {@code primary} once it and all of {@code others} have succeeded, or
+     * fails it with the first failure. Cancelling {@code future} cancels every part.
+     */
+    private static <T> void whenAll(final WatFuture<T> future, final WatFuture<? extends T> primary,
+                                    final WatFuture<?>... others) {
+        final AtomicInteger remaining = new AtomicInteger(others.length + 1);
+        final AtomicReference<T> value = new AtomicReference<>();
+
+        primary.addCallback(new WatCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                value.set(result);
+                if (remaining.decrementAndGet() == 0) {
+                    future.complete(value.get());
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.fail(t);
+            }
+        });
+
+        WatCallback<Object> callback = new WatCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                if (remaining.decrementAndGet() == 0) {
+                    future.complete(value.get());
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.fail(t);
+            }
+        };
+        for (WatFuture<?> part : others) {
+            part.addCallback(callback);
         }
 
-        String url = WatTransaction.BASE_URL + String.format(Locale.CANADA, "?dateFrom=%s&dateTo=%s&returnRows=0",
-                formattedBegin, formattedEnd);
+        // Stop the remaining requests as soon as the combined result fails or is cancelled
+        future.addCallback(new WatCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+            }
 
-        return getTransactions(url);
+            @Override
+            public void onFailure(Throwable t) {
+                primary.cancel(true);
+                for (WatFuture<?> part : others) {
+                    part.cancel(true);
+                }
+            }
+        });
     }
 
     // Getters and setters
@@ -613,4 +1560,107 @@ public class WatAccount {
     public void setPhoto(String photo) {
         this.photo = photo;
     }
+
+    /**
+     * Enables sharded transaction queries. Ranges passed to {@link #getTransactions(LocalDateTime)},
+     * {@link #getTransactions(LocalDateTime, LocalDateTime)} and {@link #getLastDaysTransactions(int, boolean)} that
+     * are longer than {@code window} are split into consecutive windows, fetched concurrently on this account's session
+     * and merged in order. Queries limited to a number of rows are never sharded.
+     * <p>
+     * Requests beyond the dispatcher's per-host limit (5 by default) wait in its queue, so a higher
+     * {@code parallelism} needs a client configured accordingly.
+     *
+     * @param window      length of each window, e.g. {@code Period.ofMonths(1)}, or null to disable sharding
+     * @param parallelism maximum number of windows fetched at once
+     */
+    public void setShardWindow(TemporalAmount window, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+        this.shardWindow = window;
+        this.shardParallelism = parallelism;
+    }
+
+    public TemporalAmount getShardWindow() {
+        return shardWindow;
+    }
+
+    public int getShardParallelism() {
+        return shardParallelism;
+    }
+
+    /**
+     * Returns the cache used by {@link #loadBalances()} and {@link #loadBalancesAsync()}. Set a TTL on it to enable
+     * caching.
+     *
+     * @return balance cache
+     */
+    public WatCache<List<WatBalance>> getBalanceCache() {
+        return balanceCache;
+    }
+
+    /**
+     * Returns the cache used by {@link #loadPersonalInfo()} and {@link #loadPersonalInfoAsync()}. Set a TTL on it to
+     * enable caching.
+     *
+     * @return personal info cache
+     */
+    public WatCache<WatAccount> getPersonalInfoCache() {
+        return personalInfoCache;
+    }
+
+    public WatBalanceHistory getBalanceHistory() {
+        return balanceHistory;
+    }
+
+    /**
+     * Records the balances in {@code history} every time they are loaded from the server. Balances served from the
+     * balance cache are not recorded again.
+     *
+     * @param history history to record to, null to stop recording
+     */
+    public void setBalanceHistory(WatBalanceHistory history) {
+        balanceHistory = history;
+    }
+
+    public WatPhotoCache getPhotoCache() {
+        return photoCache;
+    }
+
+    /**
+     * Keeps photos loaded by {@link #loadPhoto()} in {@code cache}, which may be shared with other accounts.
+     *
+     * @param cache photo cache, null to download the photo on every call
+     */
+    public void setPhotoCache(WatPhotoCache cache) {
+        photoCache = cache;
+    }
+
+    public boolean isAutoRelogin() {
+        return autoRelogin;
+    }
+
+    /**
+     * Sets whether an expired session is renewed by logging in again and retrying the request, which is the default.
+     * When disabled, requests on an expired session fail with {@link WatSessionExpiredException}.
+     *
+     * @param autoRelogin true to log in again automatically
+     */
+    public void setAutoRelogin(boolean autoRelogin) {
+        this.autoRelogin = autoRelogin;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * Sets the executor on which the callbacks of futures returned by the asynchronous methods are run. By default
+     * they run on the OkHttp dispatcher thread that completed the request.
+     *
+     * @param callbackExecutor executor for callbacks, e.g. one posting to the main thread
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
 }
\ No newline at end of file
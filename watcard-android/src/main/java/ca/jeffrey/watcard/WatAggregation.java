@@ -0,0 +1,488 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.LocalDateTime;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Grouped totals of a set of transactions: sum, count, minimum, maximum and average amount per group. All groups are
+ * computed in a single pass over a list of {@code WatTransaction}, a {@code WatTransactionTable} or a range of a
+ * {@code WatTransactionArchive}, keeping per-group state in primitive arrays and resolving terminals through the
+ * {@code WatTerminal} dictionary, so that no objects are created per row.
+ */
+public class WatAggregation {
+
+    /**
+     * What transactions are grouped by.
+     */
+    public enum GroupBy {
+        // WatBalanceType of the transaction, keyed by ordinal
+        BALANCE_TYPE,
+        // Flex Dollars, Meal Plan or Other, keyed 0, 1 and 2
+        ACCOUNT_GROUP,
+        // Terminal name without its prefix, keyed by WatTerminal clean id and ordered by name
+        TERMINAL,
+        // Calendar day, keyed by epoch day
+        DAY,
+        // Hour, keyed by hours since the epoch
+        HOUR,
+        // Hour of the day regardless of date, keyed 0 to 23
+        HOUR_OF_DAY
+    }
+
+    // Account group keys
+    public static final int GROUP_FLEX = 0;
+    public static final int GROUP_MEAL = 1;
+    public static final int GROUP_OTHER = 2;
+
+    private static final String[] ACCOUNT_GROUP_NAMES = {"Flex Dollars", "Meal Plan", "Other"};
+    private static final WatBalanceType[] BALANCE_TYPES = WatBalanceType.values();
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final GroupBy groupBy;
+    private final boolean spendingOnly;
+
+    // Open-addressing index from group key to group number
+    private long[] slotKeys;
+    private int[] slotGroups;
+
+    // Per-group accumulators, indexed by group number
+    private int groups;
+    private long[] keys;
+    private long[] sums;
+    private int[] counts;
+    private int[] mins;
+    private int[] maxes;
+
+    // Group numbers sorted by key, built once aggregation is done
+    private int[] order;
+
+    private WatAggregation(GroupBy groupBy, boolean spendingOnly) {
+        this.groupBy = groupBy;
+        this.spendingOnly = spendingOnly;
+        slotKeys = new long[64];
+        Arrays.fill(slotKeys, EMPTY);
+        slotGroups = new int[64];
+        keys = new long[16];
+        sums = new long[16];
+        counts = new int[16];
+        mins = new int[16];
+        maxes = new int[16];
+    }
+
+    /**
+     * Aggregates a list of transactions.
+     *
+     * @param transactions transactions to aggregate
+     * @param groupBy      grouping key
+     * @return aggregation
+     */
+    public static WatAggregation of(List<WatTransaction> transactions, GroupBy groupBy) {
+        return of(transactions, groupBy, false);
+    }
+
+    /**
+     * Aggregates a list of transactions.
+     *
+     * @param transactions transactions to aggregate
+     * @param groupBy      grouping key
+     * @param spendingOnly true to only include transactions with a negative amount
+     * @return aggregation
+     */
+    public static WatAggregation of(List<WatTransaction> transactions, GroupBy groupBy, boolean spendingOnly) {
+        WatAggregation aggregation = new WatAggregation(groupBy, spendingOnly);
+
+        for (int i = 0, n = transactions.size(); i < n; i++) {
+            WatTransaction transaction = transactions.get(i);
+            int cents = Math.round(transaction.getAmount() * 100);
+            if (spendingOnly && cents >= 0) {
+                continue;
+            }
+
+            long key;
+            switch (groupBy) {
+                case BALANCE_TYPE:
+                    key = WatTransaction.balanceTypeOf(transaction.getAccount()).ordinal();
+                    break;
+                case ACCOUNT_GROUP:
+                    key = accountGroupOf(WatTransaction.balanceTypeOf(transaction.getAccount()));
+                    break;
+                case TERMINAL:
+                    key = transaction.getTerminalEntry().getCleanId();
+                    break;
+                default:
+                    key = timeKey(groupBy, WatTransactionTable.toEpochSecond(transaction.getDateTime()));
+                    break;
+            }
+            aggregation.accumulate(key, cents);
+        }
+        aggregation.finish();
+        return aggregation;
+    }
+
+    /**
+     * Aggregates the rows of a transaction table.
+     *
+     * @param table   transactions to aggregate
+     * @param groupBy grouping key
+     * @return aggregation
+     */
+    public static WatAggregation of(WatTransactionTable table, GroupBy groupBy) {
+        return of(table, groupBy, false);
+    }
+
+    /**
+     * Aggregates the rows of a transaction table.
+     *
+     * @param table        transactions to aggregate
+     * @param groupBy      grouping key
+     * @param spendingOnly true to only include transactions with a negative amount
+     * @return aggregation
+     */
+    public static WatAggregation of(WatTransactionTable table, GroupBy groupBy, boolean spendingOnly) {
+        WatAggregation aggregation = new WatAggregation(groupBy, spendingOnly);
+
+        for (int i = 0, n = table.size(); i < n; i++) {
+            int cents = table.getAmountCents(i);
+            if (spendingOnly && cents >= 0) {
+                continue;
+            }
+
+            long key;
+            switch (groupBy) {
+                case BALANCE_TYPE:
+                    key = WatTransaction.balanceTypeOf(table.getAccount(i)).ordinal();
+                    break;
+                case ACCOUNT_GROUP:
+                    key = accountGroupOf(WatTransaction.balanceTypeOf(table.getAccount(i)));
+                    break;
+                case TERMINAL:
+                    key = table.getTerminalEntry(i).getCleanId();
+                    break;
+                default:
+                    key = timeKey(groupBy, table.getEpochSecond(i));
+                    break;
+            }
+            aggregation.accumulate(key, cents);
+        }
+        aggregation.finish();
+        return aggregation;
+    }
+
+    /**
+     * Aggregates the remaining transactions of an archive cursor, reading them straight from the archive file.
+     *
+     * @param cursor  transactions to aggregate, see {@link WatTransactionArchive#scan(LocalDateTime, LocalDateTime)}
+     * @param groupBy grouping key
+     * @return aggregation
+     */
+    public static WatAggregation of(WatTransactionArchive.Cursor cursor, GroupBy groupBy) {
+        return of(cursor, groupBy, false);
+    }
+
+    /**
+     * Aggregates the remaining transactions of an archive cursor, reading them straight from the archive file.
+     *
+     * @param cursor       transactions to aggregate, see
+     *                     {@link WatTransactionArchive#scan(LocalDateTime, LocalDateTime)}
+     * @param groupBy      grouping key
+     * @param spendingOnly true to only include transactions with a negative amount
+     * @return aggregation
+     */
+    public static WatAggregation of(WatTransactionArchive.Cursor cursor, GroupBy groupBy, boolean spendingOnly) {
+        WatAggregation aggregation = new WatAggregation(groupBy, spendingOnly);
+
+        while (cursor.next()) {
+            int cents = cursor.getAmountCents();
+            if (spendingOnly && cents >= 0) {
+                continue;
+            }
+
+            long key;
+            switch (groupBy) {
+                case BALANCE_TYPE:
+                    key = WatTransaction.balanceTypeOf(cursor.getAccount()).ordinal();
+                    break;
+                case ACCOUNT_GROUP:
+                    key = accountGroupOf(WatTransaction.balanceTypeOf(cursor.getAccount()));
+                    break;
+                case TERMINAL:
+                    key = cursor.getTerminalEntry().getCleanId();
+                    break;
+                default:
+                    key = timeKey(groupBy, cursor.getEpochSecond());
+                    break;
+            }
+            aggregation.accumulate(key, cents);
+        }
+        aggregation.finish();
+        return aggregation;
+    }
+
+    private static int accountGroupOf(WatBalanceType balanceType) {
+        if (WatTransaction.isFlex(balanceType)) {
+            return GROUP_FLEX;
+        }
+        else if (WatTransaction.isMeal(balanceType)) {
+            return GROUP_MEAL;
+        }
+        return GROUP_OTHER;
+    }
+
+    private static long timeKey(GroupBy groupBy, long epochSecond) {
+        switch (groupBy) {
+            case DAY:
+                return floorDiv(epochSecond, 86400);
+            case HOUR:
+                return floorDiv(epochSecond, 3600);
+            default:
+                return (epochSecond - floorDiv(epochSecond, 86400) * 86400) / 3600;
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y < 0) ? q - 1 : q;
+    }
+
+    private void accumulate(long key, int cents) {
+        int group = groupOf(key);
+        sums[group] += cents;
+        if (counts[group] == 0 || cents < mins[group]) {
+            mins[group] = cents;
+        }
+        if (counts[group] == 0 || cents > maxes[group]) {
+            maxes[group] = cents;
+        }
+        counts[group]++;
+    }
+
+    private int groupOf(long key) {
+        int mask = slotKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (slotKeys[slot] != EMPTY) {
+            if (slotKeys[slot] == key) {
+                return slotGroups[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // New group
+        if (groups == keys.length) {
+            int capacity = groups * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxes = Arrays.copyOf(maxes, capacity);
+        }
+        int group = groups++;
+        keys[group] = key;
+        slotKeys[slot] = key;
+        slotGroups[slot] = group;
+
+        // Keep the index at most half full
+        if (groups * 2 > slotKeys.length) {
+            rehash();
+        }
+        return group;
+    }
+
+    private void rehash() {
+        slotKeys = new long[slotKeys.length * 2];
+        Arrays.fill(slotKeys, EMPTY);
+        slotGroups = new int[slotKeys.length];
+        int mask = slotKeys.length - 1;
+        for (int group = 0; group < groups; group++) {
+            int slot = mix(keys[group]) & mask;
+            while (slotKeys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slotKeys[slot] = keys[group];
+            slotGroups[slot] = group;
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // Orders groups by key, or by name for terminals
+    private void finish() {
+        order = new int[groups];
+        if (groupBy != GroupBy.TERMINAL && sortByKey()) {
+            return;
+        }
+
+        final String[] names = new String[groups];
+        Integer[] sorted = new Integer[groups];
+        for (int group = 0; group < groups; group++) {
+            names[group] = groupBy == GroupBy.TERMINAL ? WatTerminal.getCleanName((int) keys[group]) : null;
+            sorted[group] = group;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (names[a] != null) {
+                    return names[a].compareTo(names[b]);
+                }
+                return keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < groups; i++) {
+            order[i] = sorted[i];
+        }
+    }
+
+    /**
+     * Sorts the groups by key, packed above the group number into a single long.
+     *
+     * @return false if a key does not fit in an int, leaving {@code order} unsorted
+     */
+    private boolean sortByKey() {
+        long[] packed = new long[groups];
+        for (int group = 0; group < groups; group++) {
+            long key = keys[group];
+            if (key != (int) key) {
+                return false;
+            }
+            packed[group] = (key << 32) | group;
+        }
+        Arrays.sort(packed);
+        for (int i = 0; i < groups; i++) {
+            order[i] = (int) packed[i];
+        }
+        return true;
+    }
+
+    public GroupBy getGroupBy() {
+        return groupBy;
+    }
+
+    public boolean isSpendingOnly() {
+        return spendingOnly;
+    }
+
+    /**
+     * @return number of groups
+     */
+    public int size() {
+        return groups;
+    }
+
+    /**
+     * Returns the position of a group key, see {@link GroupBy} for what keys mean.
+     *
+     * @param key group key
+     * @return position of the group, or -1 if no transaction fell into it
+     */
+    public int indexOf(long key) {
+        for (int i = 0; i < groups; i++) {
+            if (keys[order[i]] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Group accessors, by position in group order
+    public long getKey(int index) {
+        return keys[order[index]];
+    }
+
+    /**
+     * Returns a readable name for a group: the balance type, account group or terminal name, the date, the date &amp;
+     * time of the hour, or the hour of the day.
+     *
+     * @param index group position
+     * @return group name
+     */
+    public String getLabel(int index) {
+        long key = getKey(index);
+        switch (groupBy) {
+            case BALANCE_TYPE:
+                return BALANCE_TYPES[(int) key].name();
+            case ACCOUNT_GROUP:
+                return ACCOUNT_GROUP_NAMES[(int) key];
+            case TERMINAL:
+                return WatTerminal.getCleanName((int) key);
+            case DAY:
+                return LocalDate.ofEpochDay(key).toString();
+            case HOUR:
+                return WatTransactionTable.fromEpochSecond(key * 3600).toString();
+            default:
+                return String.valueOf(key);
+        }
+    }
+
+    /**
+     * @param index group position
+     * @return balance type of the group, only when grouped by {@code BALANCE_TYPE}
+     */
+    public WatBalanceType getBalanceType(int index) {
+        if (groupBy != GroupBy.BALANCE_TYPE) {
+            throw new IllegalStateException("Not grouped by balance type");
+        }
+        return BALANCE_TYPES[(int) getKey(index)];
+    }
+
+    /**
+     * @param index group position
+     * @return start of the group's day or hour, only when grouped by {@code DAY} or {@code HOUR}
+     */
+    public LocalDateTime getStart(int index) {
+        if (groupBy == GroupBy.DAY) {
+            return LocalDate.ofEpochDay(getKey(index)).atStartOfDay();
+        }
+        else if (groupBy == GroupBy.HOUR) {
+            return WatTransactionTable.fromEpochSecond(getKey(index) * 3600);
+        }
+        throw new IllegalStateException("Not grouped by time");
+    }
+
+    public long getSumCents(int index) {
+        return sums[order[index]];
+    }
+
+    public float getSum(int index) {
+        return getSumCents(index) / 100f;
+    }
+
+    public int getCount(int index) {
+        return counts[order[index]];
+    }
+
+    public int getMinCents(int index) {
+        return mins[order[index]];
+    }
+
+    public float getMin(int index) {
+        return getMinCents(index) / 100f;
+    }
+
+    public int getMaxCents(int index) {
+        return maxes[order[index]];
+    }
+
+    public float getMax(int index) {
+        return getMaxCents(index) / 100f;
+    }
+
+    public float getAverage(int index) {
+        return getSumCents(index) / 100f / getCount(index);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < groups; i++) {
+            sb.append(String.format("%s: $%.2f [Count: %d, Min: $%.2f, Max: $%.2f, Average: $%.2f]%n", getLabel(i),
+                    getSum(i), getCount(i), getMin(i), getMax(i), getAverage(i)));
+        }
+        return sb.toString();
+    }
+}
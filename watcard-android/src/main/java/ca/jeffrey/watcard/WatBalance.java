@@ -50,6 +50,13 @@ public class WatBalance {
         return limit;
     }
 
+    /**
+     * @return limit in cents, free of float rounding
+     */
+    public int getLimitCents() {
+        return Math.round(limit * 100);
+    }
+
     public void setLimit(float limit) {
         this.limit = limit;
     }
@@ -58,6 +65,13 @@ public class WatBalance {
         return value;
     }
 
+    /**
+     * @return balance in cents, free of float rounding
+     */
+    public int getValueCents() {
+        return Math.round(value * 100);
+    }
+
     public void setValue(float value) {
         this.value = value;
     }
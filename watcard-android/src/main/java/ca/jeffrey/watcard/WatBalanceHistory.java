@@ -0,0 +1,449 @@
+package ca.jeffrey.watcard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History of the balances of one account, recorded each time they are loaded. Attach it with
+ * {@link WatAccount#setBalanceHistory(WatBalanceHistory)}.
+ * <p>
+ * Each {@link WatBalanceType} has its own series of points, each holding a time and the balance from then on. A point
+ * is only added when a balance changes, so refreshing an unchanged account costs nothing. Points are stored as
+ * variable-length deltas from the previous point, with a full checkpoint every {@value #CHECKPOINT_INTERVAL} points
+ * so range queries only decode the part they need.
+ * <p>
+ * Points older than the full resolution period are downsampled to the last point of each interval, and points older
+ * than the maximum age, if set, are dropped. Times are in milliseconds since the epoch.
+ */
+public class WatBalanceHistory {
+
+    // Balance types in the order of the Balances page
+    private static final WatBalanceType[] TYPES = Arrays.copyOf(WatBalanceType.values(), 12);
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    /**
+     * Balance from a point in time on.
+     */
+    public static class Point {
+        private final long time;
+        private final int cents;
+
+        Point(long time, int cents) {
+            this.time = time;
+            this.cents = cents;
+        }
+
+        /**
+         * @return time of the change, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public int getCents() {
+            return cents;
+        }
+
+        public float getValue() {
+            return cents / 100f;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d: $%.2f", time, getValue());
+        }
+    }
+
+    private final Map<WatBalanceType, Series> series = new EnumMap<>(WatBalanceType.class);
+
+    private long fullResolutionMillis = TimeUnit.DAYS.toMillis(30);
+    private long intervalMillis = TimeUnit.DAYS.toMillis(1);
+    private long maxAgeMillis;
+
+    private int snapshots;
+    private long lastRecordedAt = Long.MIN_VALUE;
+    private long lastChangedAt = Long.MIN_VALUE;
+    private long compactedAt = Long.MIN_VALUE;
+
+    public WatBalanceHistory() {
+        for (WatBalanceType type : TYPES) {
+            series.put(type, new Series());
+        }
+    }
+
+    /**
+     * Sets how long points are kept as recorded and how coarsely older points are kept.
+     *
+     * @param fullResolution age up to which every change is kept
+     * @param interval       older points are reduced to the last one of each interval
+     * @param unit           unit of {@code fullResolution} and {@code interval}
+     */
+    public synchronized void setDownsampling(long fullResolution, long interval, TimeUnit unit) {
+        if (fullResolution < 0 || interval <= 0) {
+            throw new IllegalArgumentException("Invalid downsampling period");
+        }
+        fullResolutionMillis = unit.toMillis(fullResolution);
+        intervalMillis = unit.toMillis(interval);
+        compactedAt = Long.MIN_VALUE;
+    }
+
+    /**
+     * Sets the age after which points are dropped. The balance in effect at that age is kept.
+     *
+     * @param maxAge maximum age, 0 to keep every point
+     * @param unit   unit of {@code maxAge}
+     */
+    public synchronized void setMaxAge(long maxAge, TimeUnit unit) {
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge < 0");
+        }
+        maxAgeMillis = unit.toMillis(maxAge);
+        compactedAt = Long.MIN_VALUE;
+    }
+
+    /**
+     * Records the balances loaded at {@code time}. Only balances that changed since the last snapshot add a point.
+     *
+     * @param time     time the balances were loaded, in milliseconds since the epoch
+     * @param balances balances in the order of the Balances page
+     * @return true if any balance changed
+     */
+    public synchronized boolean record(long time, List<WatBalance> balances) {
+        if (balances.size() != TYPES.length) {
+            return false;
+        }
+        // Points must be in order even if the clock goes back
+        time = Math.max(time, lastRecordedAt);
+
+        boolean changed = false;
+        for (int i = 0; i < TYPES.length; i++) {
+            changed |= series.get(TYPES[i]).append(time, balances.get(i).getValueCents());
+        }
+        snapshots++;
+        lastRecordedAt = time;
+        if (changed) {
+            lastChangedAt = time;
+        }
+        if (compactedAt == Long.MIN_VALUE || time - compactedAt >= intervalMillis) {
+            compact(time);
+        }
+        return changed;
+    }
+
+    /**
+     * @param time time in milliseconds since the epoch
+     * @return true if any balance changed after {@code time}
+     */
+    public synchronized boolean hasChangedSince(long time) {
+        return lastChangedAt > time;
+    }
+
+    /**
+     * @param type balance type
+     * @param time time in milliseconds since the epoch
+     * @return true if the balance of {@code type} changed after {@code time}
+     */
+    public synchronized boolean hasChangedSince(WatBalanceType type, long time) {
+        Series s = series.get(type);
+        return s != null && s.count > 0 && s.lastTime > time;
+    }
+
+    /**
+     * @param type balance type
+     * @return most recent point of {@code type}, or null if nothing was recorded
+     */
+    public synchronized Point getLatest(WatBalanceType type) {
+        Series s = series.get(type);
+        return s == null || s.count == 0 ? null : new Point(s.lastTime, s.lastCents);
+    }
+
+    /**
+     * @param type balance type
+     * @param time time in milliseconds since the epoch
+     * @return point in effect at {@code time}, or null if {@code type} has no point that early
+     */
+    public synchronized Point getPointAt(WatBalanceType type, long time) {
+        List<Point> points = getRange(type, time, time);
+        return points.isEmpty() ? null : points.get(0);
+    }
+
+    /**
+     * Returns the points of {@code type} between two times, starting with the one in effect at {@code from}, so the
+     * result describes the balance over the whole range.
+     *
+     * @param type balance type
+     * @param from start of the range in milliseconds since the epoch, inclusive
+     * @param to   end of the range in milliseconds since the epoch, inclusive
+     * @return points in time order
+     */
+    public synchronized List<Point> getRange(WatBalanceType type, long from, long to) {
+        List<Point> points = new ArrayList<>();
+        Series s = series.get(type);
+        if (s == null || s.count == 0 || from > to) {
+            return points;
+        }
+
+        Series.Reader reader = s.reader(s.checkpointBefore(from));
+        // Point in effect at from, if any
+        boolean previous = false;
+        long previousTime = 0;
+        int previousCents = 0;
+        while (reader.next()) {
+            if (reader.time <= from) {
+                previous = true;
+                previousTime = reader.time;
+                previousCents = reader.cents;
+                continue;
+            }
+            if (reader.time > to) {
+                break;
+            }
+            if (previous) {
+                points.add(new Point(previousTime, previousCents));
+                previous = false;
+            }
+            points.add(new Point(reader.time, reader.cents));
+        }
+        if (previous) {
+            points.add(new Point(previousTime, previousCents));
+        }
+        return points;
+    }
+
+    /**
+     * @param type balance type
+     * @return number of points stored for {@code type}
+     */
+    public synchronized int size(WatBalanceType type) {
+        Series s = series.get(type);
+        return s == null ? 0 : s.count;
+    }
+
+    /**
+     * @return number of snapshots recorded, including those without changes
+     */
+    public synchronized int getSnapshotCount() {
+        return snapshots;
+    }
+
+    /**
+     * @return time of the last snapshot, or {@code Long.MIN_VALUE} if none
+     */
+    public synchronized long getLastRecordedAt() {
+        return lastRecordedAt;
+    }
+
+    /**
+     * @return time of the last snapshot that changed a balance, or {@code Long.MIN_VALUE} if none
+     */
+    public synchronized long getLastChangedAt() {
+        return lastChangedAt;
+    }
+
+    /**
+     * @return bytes used by the encoded points
+     */
+    public synchronized int getEncodedSize() {
+        int size = 0;
+        for (Series s : series.values()) {
+            size += s.length + s.checkpoints * 16;
+        }
+        return size;
+    }
+
+    /**
+     * Removes every point.
+     */
+    public synchronized void clear() {
+        for (WatBalanceType type : TYPES) {
+            series.put(type, new Series());
+        }
+        snapshots = 0;
+        lastRecordedAt = lastChangedAt = compactedAt = Long.MIN_VALUE;
+    }
+
+    // Downsamples and expires old points of every series
+    private void compact(long now) {
+        compactedAt = now;
+        long downsampleBefore = now - fullResolutionMillis;
+        long dropBefore = maxAgeMillis > 0 ? now - maxAgeMillis : Long.MIN_VALUE;
+        for (Map.Entry<WatBalanceType, Series> entry : series.entrySet()) {
+            Series s = entry.getValue();
+            if (s.count > 1 && s.firstTime < downsampleBefore) {
+                entry.setValue(s.compact(downsampleBefore, intervalMillis, dropBefore));
+            }
+        }
+    }
+
+    /**
+     * Points of one balance type. Each point is written as the zigzag varint difference in time and in cents from the
+     * previous one. Every {@value #CHECKPOINT_INTERVAL}th point is also kept as is along with the offset of the next
+     * point.
+     */
+    private static class Series {
+        private byte[] data = new byte[32];
+        private int length;
+        private int count;
+
+        private long firstTime;
+        private long lastTime;
+        private int lastCents;
+
+        private long[] checkpointTimes = new long[1];
+        private int[] checkpointCents = new int[1];
+        private int[] checkpointOffsets = new int[1];
+        private int checkpoints;
+
+        /**
+         * @return true if a point was added
+         */
+        boolean append(long time, int cents) {
+            if (count > 0 && cents == lastCents) {
+                return false;
+            }
+            if (count == 0) {
+                firstTime = time;
+            }
+            writeVarLong(time - lastTime);
+            writeVarLong((long) cents - lastCents);
+            if (count % CHECKPOINT_INTERVAL == 0) {
+                if (checkpoints == checkpointTimes.length) {
+                    int capacity = checkpoints * 2;
+                    checkpointTimes = Arrays.copyOf(checkpointTimes, capacity);
+                    checkpointCents = Arrays.copyOf(checkpointCents, capacity);
+                    checkpointOffsets = Arrays.copyOf(checkpointOffsets, capacity);
+                }
+                checkpointTimes[checkpoints] = time;
+                checkpointCents[checkpoints] = cents;
+                checkpointOffsets[checkpoints] = length;
+                checkpoints++;
+            }
+            lastTime = time;
+            lastCents = cents;
+            count++;
+            return true;
+        }
+
+        // Index of the last checkpoint at or before time, or 0
+        int checkpointBefore(long time) {
+            int low = 0;
+            int high = checkpoints - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (checkpointTimes[mid] <= time) {
+                    low = mid;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        Reader reader(int checkpoint) {
+            return new Reader(checkpoint);
+        }
+
+        /**
+         * Reduces points before {@code downsampleBefore} to the last one of each interval and drops points before
+         * {@code dropBefore} except the one still in effect.
+         */
+        Series compact(long downsampleBefore, long interval, long dropBefore) {
+            long[] times = new long[count];
+            int[] cents = new int[count];
+            int n = 0;
+            Reader reader = reader(0);
+            while (reader.next()) {
+                times[n] = reader.time;
+                cents[n] = reader.cents;
+                n++;
+            }
+
+            Series compacted = new Series();
+            for (int i = 0; i < n; i++) {
+                long time = times[i];
+                if (i + 1 < n) {
+                    long next = times[i + 1];
+                    // Superseded by the balance in effect at the drop horizon
+                    if (next <= dropBefore) {
+                        continue;
+                    }
+                    // Not the last point of its interval
+                    if (next < downsampleBefore && bucket(next, interval) == bucket(time, interval)) {
+                        continue;
+                    }
+                }
+                compacted.append(time, cents[i]);
+            }
+            return compacted;
+        }
+
+        private static long bucket(long time, long interval) {
+            long q = time / interval;
+            return time % interval < 0 ? q - 1 : q;
+        }
+
+        private void writeVarLong(long value) {
+            if (length + 10 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            }
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                data[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            data[length++] = (byte) zigzag;
+        }
+
+        /**
+         * Decodes points from a checkpoint on.
+         */
+        class Reader {
+            private int offset;
+            private int remaining;
+            private boolean started;
+            long time;
+            int cents;
+
+            Reader(int checkpoint) {
+                remaining = count - checkpoint * CHECKPOINT_INTERVAL;
+                if (checkpoints > 0) {
+                    // The checkpoint holds its point as is and the offset of the following one
+                    offset = checkpointOffsets[checkpoint];
+                    time = checkpointTimes[checkpoint];
+                    cents = checkpointCents[checkpoint];
+                }
+            }
+
+            boolean next() {
+                if (remaining == 0) {
+                    return false;
+                }
+                remaining--;
+                if (started) {
+                    time += readVarLong();
+                    cents += (int) readVarLong();
+                }
+                started = true;
+                return true;
+            }
+
+            private long readVarLong() {
+                long result = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[offset++];
+                    result |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                }
+                while (b < 0);
+                return (result >>> 1) ^ -(result & 1);
+            }
+        }
+    }
+}
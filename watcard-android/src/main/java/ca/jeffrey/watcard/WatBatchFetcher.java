@@ -0,0 +1,364 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Loads many accounts at once over one shared connection pool. Each account gets its own session and goes through
+ * session setup, {@code login()}, balances and optionally personal information and transactions. At most
+ * {@code concurrency} accounts are in progress at a time, each one is bounded by a timeout, and a failing account
+ * never affects the others. Results are reported as each account finishes.
+ */
+public class WatBatchFetcher {
+
+    /**
+     * Account number and password of one account.
+     */
+    public static class Credential {
+        private final String account;
+        private final String password;
+
+        /**
+         * Constructor
+         *
+         * @param account  student id
+         * @param password associated password
+         */
+        public Credential(String account, String password) {
+            this.account = account;
+            this.password = password;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+    }
+
+    /**
+     * Outcome of one account.
+     */
+    public static class Result {
+        private final String accountNumber;
+        private final WatAccount account;
+        private final List<WatTransaction> transactions;
+        private final Throwable error;
+        private final long elapsedMillis;
+
+        Result(String accountNumber, WatAccount account, List<WatTransaction> transactions, Throwable error,
+               long elapsedMillis) {
+            this.accountNumber = accountNumber;
+            this.account = account;
+            this.transactions = transactions;
+            this.error = error;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        public String getAccountNumber() {
+            return accountNumber;
+        }
+
+        /**
+         * @return the loaded account, or null if it failed before logging in
+         */
+        public WatAccount getAccount() {
+            return account;
+        }
+
+        /**
+         * @return fetched transactions, or null if transactions were not requested or the account failed
+         */
+        public List<WatTransaction> getTransactions() {
+            return transactions;
+        }
+
+        /**
+         * @return cause of the failure, a {@code TimeoutException} if the account timed out, or null on success
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    /**
+     * Receives results as accounts finish. Called from the batch's worker threads.
+     */
+    public interface Listener {
+        void onResult(Result result);
+    }
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "WatBatchFetcher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final int concurrency;
+    private final long timeoutMillis;
+
+    private OkHttpClient client;
+    private boolean loadPersonalInfo;
+    private LocalDateTime transactionsSince;
+
+    /**
+     * Constructor
+     *
+     * @param concurrency maximum number of accounts in progress at once
+     * @param timeout     time allowed for each account, 0 for no limit
+     * @param unit        unit of {@code timeout}
+     */
+    public WatBatchFetcher(int concurrency, long timeout, TimeUnit unit) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency < 1");
+        }
+        this.concurrency = concurrency;
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets the client sessions are created on. Defaults to {@link WatHttpClient#getSharedClient()}. Its dispatcher's
+     * per-host limit should be at least {@code concurrency} for accounts not to queue behind each other.
+     *
+     * @param client base client
+     */
+    public void setClient(OkHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @param loadPersonalInfo true to also load each account's personal information
+     */
+    public void setLoadPersonalInfo(boolean loadPersonalInfo) {
+        this.loadPersonalInfo = loadPersonalInfo;
+    }
+
+    /**
+     * @param transactionsSince date &amp; time from which to fetch each account's transactions, or null to skip them
+     */
+    public void setTransactionsSince(LocalDateTime transactionsSince) {
+        this.transactionsSince = transactionsSince;
+    }
+
+    /**
+     * Loads all accounts and waits until every one of them has finished or timed out.
+     *
+     * @param credentials accounts to load
+     * @return results in completion order
+     * @throws InterruptedException if interrupted while waiting, in which case the batch is cancelled
+     */
+    public List<Result> fetchAll(Collection<Credential> credentials) throws InterruptedException {
+        WatFuture<List<Result>> batch = start(credentials, null);
+        try {
+            return batch.get();
+        }
+        catch (InterruptedException e) {
+            batch.cancel(true);
+            throw e;
+        }
+        catch (ExecutionException e) {
+            // Individual failures are reported in the results, the batch itself never fails
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts loading all accounts in the background.
+     *
+     * @param credentials accounts to load
+     * @param listener    notified as each account finishes, may be null
+     * @return future completed with all results in completion order; cancelling it cancels the remaining accounts
+     */
+    public WatFuture<List<Result>> start(Collection<Credential> credentials, final Listener listener) {
+        final List<Credential> pending = new ArrayList<>(credentials);
+        final WatFuture<List<Result>> batch = new WatFuture<>(WatFuture.DIRECT_EXECUTOR);
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+
+        if (pending.isEmpty()) {
+            batch.complete(results);
+            return batch;
+        }
+
+        final OkHttpClient baseClient = client != null ? client : WatHttpClient.getSharedClient();
+        final ExecutorService workers = Executors.newFixedThreadPool(Math.min(concurrency, pending.size()),
+                THREAD_FACTORY);
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        final AtomicInteger remaining = new AtomicInteger(pending.size());
+        final List<Task> tasks = new ArrayList<>();
+
+        for (Credential credential : pending) {
+            final Task task = new Task(credential, baseClient) {
+                @Override
+                void report(Result result) {
+                    results.add(result);
+                    try {
+                        if (listener != null) {
+                            listener.onResult(result);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        // A failing listener must not keep the batch from completing
+                        e.printStackTrace();
+                    }
+                    finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            workers.shutdown();
+                            timer.shutdownNow();
+                            batch.complete(new ArrayList<>(results));
+                        }
+                    }
+                }
+            };
+            tasks.add(task);
+            task.future = workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (timeoutMillis > 0) {
+                        timer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                task.timeOut();
+                            }
+                        }, timeoutMillis, TimeUnit.MILLISECONDS);
+                    }
+                    task.run();
+                }
+            });
+        }
+
+        batch.addCallback(new WatCallback<List<Result>>() {
+            @Override
+            public void onSuccess(List<Result> result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Batch cancelled
+                workers.shutdownNow();
+                timer.shutdownNow();
+                for (Task task : tasks) {
+                    task.cancel();
+                }
+            }
+        });
+        return batch;
+    }
+
+    /**
+     * Work for one account. The first of completion, failure or timeout is reported, later outcomes are dropped.
+     */
+    private abstract class Task {
+        private final Credential credential;
+        private final OkHttpClient baseClient;
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private volatile WatSession session;
+        private volatile long startedAt;
+        volatile Future<?> future;
+
+        Task(Credential credential, OkHttpClient baseClient) {
+            this.credential = credential;
+            this.baseClient = baseClient;
+        }
+
+        abstract void report(Result result);
+
+        void run() {
+            startedAt = System.currentTimeMillis();
+            WatAccount account = null;
+            List<WatTransaction> transactions = null;
+
+            try {
+                session = new WatSession(baseClient);
+                if (reported.get()) {
+                    return;
+                }
+                if (session.getVerificationToken() == null) {
+                    throw new IOException("Could not start session for " + credential.account);
+                }
+
+                account = new WatAccount(session, credential.account, credential.password);
+                int code = account.login();
+                if (code < 200 || code >= 300) {
+                    throw new IOException("Login failed for " + credential.account + ": " + code);
+                }
+
+                // Load the pages in parallel on the account's session
+                WatFuture<List<WatBalance>> balances = account.loadBalancesAsync();
+                WatFuture<WatAccount> personalInfo = loadPersonalInfo ? account.loadPersonalInfoAsync() : null;
+                if (transactionsSince != null) {
+                    transactions = account.fetchTransactions(transactionsSince, LocalDateTime.now());
+                }
+                balances.get();
+                if (personalInfo != null) {
+                    personalInfo.get();
+                }
+
+                finish(new Result(credential.account, account, transactions, null, elapsed()));
+            }
+            catch (ExecutionException e) {
+                finish(new Result(credential.account, account, null, e.getCause(), elapsed()));
+            }
+            catch (Exception e) {
+                finish(new Result(credential.account, account, null, e, elapsed()));
+            }
+        }
+
+        void timeOut() {
+            if (finish(new Result(credential.account, null, null,
+                    new TimeoutException("Timed out loading " + credential.account), elapsed()))) {
+                cancel();
+            }
+        }
+
+        void cancel() {
+            WatSession current = session;
+            if (current != null) {
+                current.cancel();
+            }
+            Future<?> running = future;
+            if (running != null) {
+                running.cancel(true);
+            }
+        }
+
+        private boolean finish(Result result) {
+            if (!reported.compareAndSet(false, true)) {
+                return false;
+            }
+            report(result);
+            return true;
+        }
+
+        private long elapsed() {
+            return System.currentTimeMillis() - startedAt;
+        }
+    }
+}
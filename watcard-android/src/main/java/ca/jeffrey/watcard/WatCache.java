@@ -0,0 +1,179 @@
+package ca.jeffrey.watcard;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-based cache in front of one {@code WatAccount} resource such as its balances. A value younger than the TTL is
+ * served as is. Once older, it is still served for the stale period while a refresh runs in the background. Past
+ * that, callers wait for a new value. Concurrent callers share a single in-flight request.
+ * <p>
+ * Caching is disabled while the TTL is 0, which is the default.
+ *
+ * @param <T> cached value type
+ */
+public class WatCache<T> {
+
+    /**
+     * Starts a request for a new value.
+     */
+    interface Loader<T> {
+        WatFuture<T> load();
+    }
+
+    private final Loader<T> loader;
+
+    private long ttlNanos;
+    private long staleNanos;
+
+    private boolean loaded;
+    private T value;
+    private long loadedAt;
+    private WatFuture<T> inFlight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    WatCache(Loader<T> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Sets how long a value is served without revalidating, and how long after that it may still be served while it
+     * is refreshed in the background.
+     *
+     * @param ttl   time to live, 0 to disable caching
+     * @param stale additional time a stale value is served while revalidating, 0 to always wait for a fresh value
+     * @param unit  unit of {@code ttl} and {@code stale}
+     */
+    public synchronized void setTtl(long ttl, long stale, TimeUnit unit) {
+        if (ttl < 0 || stale < 0) {
+            throw new IllegalArgumentException("ttl and stale must not be negative");
+        }
+        ttlNanos = unit.toNanos(ttl);
+        staleNanos = unit.toNanos(stale);
+    }
+
+    public synchronized boolean isEnabled() {
+        return ttlNanos > 0;
+    }
+
+    public synchronized long getTtl(TimeUnit unit) {
+        return unit.convert(ttlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized long getStale(TimeUnit unit) {
+        return unit.convert(staleNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the cached value if it is usable, otherwise the in-flight or a new request.
+     *
+     * @param forceRefresh true to skip the cached value
+     * @param executor     executor for the returned future's callbacks
+     * @return future completed with the value
+     */
+    WatFuture<T> get(boolean forceRefresh, Executor executor) {
+        WatFuture<T> source;
+
+        synchronized (this) {
+            if (!forceRefresh && loaded && ttlNanos > 0) {
+                long age = System.nanoTime() - loadedAt;
+                if (age < ttlNanos) {
+                    hits.incrementAndGet();
+                    return completed(value, executor);
+                }
+                if (age < ttlNanos + staleNanos) {
+                    staleHits.incrementAndGet();
+                    refresh();
+                    return completed(value, executor);
+                }
+            }
+            misses.incrementAndGet();
+            source = refresh();
+        }
+
+        // Each caller gets its own future, so cancelling one does not cancel the shared request
+        final WatFuture<T> future = new WatFuture<>(executor);
+        source.addCallback(new WatCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.fail(t);
+            }
+        });
+        return future;
+    }
+
+    // Starts a request unless one is already running
+    private synchronized WatFuture<T> refresh() {
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        final WatFuture<T> request = loader.load();
+        inFlight = request;
+        request.addCallback(new WatCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                synchronized (WatCache.this) {
+                    value = result;
+                    loaded = true;
+                    loadedAt = System.nanoTime();
+                    if (inFlight == request) {
+                        inFlight = null;
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                synchronized (WatCache.this) {
+                    if (inFlight == request) {
+                        inFlight = null;
+                    }
+                }
+            }
+        });
+        return request;
+    }
+
+    private static <T> WatFuture<T> completed(T value, Executor executor) {
+        WatFuture<T> future = new WatFuture<>(executor);
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Marks the cached value as expired, so the next request goes to the network.
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+        value = null;
+    }
+
+    // Statistics
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        staleHits.set(0);
+        misses.set(0);
+    }
+}
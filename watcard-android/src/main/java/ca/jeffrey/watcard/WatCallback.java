@@ -0,0 +1,23 @@
+package ca.jeffrey.watcard;
+
+/**
+ * Receives the outcome of a {@code WatFuture}.
+ *
+ * @param <T> result type
+ */
+public interface WatCallback<T> {
+
+    /**
+     * Called when the request completed and its response was parsed.
+     *
+     * @param result parsed result
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the request or parsing failed, or the future was cancelled.
+     *
+     * @param t cause of the failure
+     */
+    void onFailure(Throwable t);
+}
@@ -0,0 +1,224 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneOffset;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Parsers for the fixed field formats of the WatCard site that read characters directly into primitives: amounts such
+ * as {@code "$-1,234.56"} into cents and dates such as {@code "11/28/2017 6:42:19 PM"} into epoch seconds. No regex,
+ * formatter or intermediate string is involved on the common path.
+ * <p>
+ * Anything outside the expected format is handed to the strict parser the library used before, so the result (or the
+ * exception) is the same as with {@code Float.parseFloat} and {@link WatTransaction#RESPONSE_FORMAT}, only faster.
+ */
+final class WatFieldParser {
+
+    // Days from 0000-01-01 to 1970-01-01
+    private static final long DAYS_0000_TO_1970 = 719528;
+    private static final int SECONDS_PER_DAY = 86400;
+
+    private WatFieldParser() {
+    }
+
+    /**
+     * Parses an amount in the site's currency format, e.g. {@code "$-8.47"}, {@code "-$1,487.15"} or {@code "12"}.
+     *
+     * @param s text to parse, surrounding whitespace allowed
+     * @return amount in cents
+     * @throws NumberFormatException if {@code s} is not an amount
+     */
+    static int parseCents(CharSequence s) {
+        return parseCents(s, 0, s.length());
+    }
+
+    /**
+     * Parses an amount in the site's currency format from part of a string.
+     *
+     * @param s     text to parse
+     * @param start index of the first character
+     * @param end   index after the last character
+     * @return amount in cents
+     * @throws NumberFormatException if the range is not an amount
+     */
+    static int parseCents(CharSequence s, int start, int end) {
+        int i = start;
+        while (i < end && s.charAt(i) <= ' ') {
+            i++;
+        }
+        while (end > i && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        boolean negative = false;
+        boolean dollar = false;
+        // Sign and dollar sign in either order
+        for (int k = 0; k < 2 && i < end; k++) {
+            char c = s.charAt(i);
+            if (c == '-' && !negative) {
+                negative = true;
+                i++;
+            }
+            else if (c == '$' && !dollar) {
+                dollar = true;
+                i++;
+            }
+        }
+
+        long value = 0;
+        int digits = 0;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 9) {
+                    return strictCents(s, start, end);
+                }
+            }
+            else if (c != ',' || digits == 0) {
+                break;
+            }
+            i++;
+        }
+
+        int fraction = 0;
+        int fractionDigits = 0;
+        if (i < end && s.charAt(i) == '.') {
+            i++;
+            while (i < end && fractionDigits < 2) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                fraction = fraction * 10 + (c - '0');
+                fractionDigits++;
+                i++;
+            }
+        }
+
+        if (i != end || digits + fractionDigits == 0) {
+            return strictCents(s, start, end);
+        }
+        if (fractionDigits == 1) {
+            fraction *= 10;
+        }
+        long cents = value * 100 + fraction;
+        if (cents > Integer.MAX_VALUE) {
+            return strictCents(s, start, end);
+        }
+        return (int) (negative ? -cents : cents);
+    }
+
+    // Previous behaviour: strip '$' and ',' and parse as a decimal number
+    private static int strictCents(CharSequence s, int start, int end) {
+        String text = s.subSequence(start, end).toString().replaceAll("[$,]", "").trim();
+        try {
+            return new BigDecimal(text).movePointRight(2).setScale(0, RoundingMode.HALF_UP).intValueExact();
+        }
+        catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    /**
+     * Parses a transaction date in {@link WatTransaction#RESPONSE_FORMAT}, e.g. {@code "11/28/2017 6:42:19 PM"}.
+     *
+     * @param s text to parse
+     * @return epoch seconds of the date &amp; time taken at UTC
+     * @throws org.threeten.bp.format.DateTimeParseException if {@code s} is not a date in that format
+     */
+    static long parseEpochSecond(CharSequence s) {
+        int length = s.length();
+        // MM/dd/yyyy h:mm:ss a, with a one or two digit hour
+        int hourDigits = length - 20;
+        if (hourDigits < 1 || hourDigits > 2 || s.charAt(2) != '/' || s.charAt(5) != '/' || s.charAt(10) != ' ') {
+            return strictEpochSecond(s);
+        }
+        int t = 11 + hourDigits;
+        if (s.charAt(t) != ':' || s.charAt(t + 3) != ':' || s.charAt(t + 6) != ' ' || s.charAt(t + 8) != 'M') {
+            return strictEpochSecond(s);
+        }
+
+        int month = digits(s, 0, 2);
+        int day = digits(s, 3, 2);
+        int year = digits(s, 6, 4);
+        int hour = digits(s, 11, hourDigits);
+        int minute = digits(s, t + 1, 2);
+        int second = digits(s, t + 4, 2);
+        char half = s.charAt(t + 7);
+        // digits() returns -1 for anything other than digits
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month) || hour < 1
+                || hour > 12 || minute < 0 || minute > 59 || second < 0 || second > 59
+                || (half != 'A' && half != 'P')) {
+            return strictEpochSecond(s);
+        }
+
+        hour = hour % 12 + (half == 'P' ? 12 : 0);
+        return epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+    }
+
+    /**
+     * Parses a decimal integer such as an account number or unit.
+     *
+     * @param s text to parse
+     * @return value of {@code s}
+     * @throws NumberFormatException if {@code s} is not an integer
+     */
+    static int parseInt(CharSequence s) {
+        int length = s.length();
+        // Nine digits always fit in an int
+        int value = length > 0 && length <= 9 ? digits(s, 0, length) : -1;
+        return value >= 0 ? value : Integer.parseInt(s.toString());
+    }
+
+    private static long strictEpochSecond(CharSequence s) {
+        return LocalDateTime.parse(s, WatTransaction.RESPONSE_FORMAT).toEpochSecond(ZoneOffset.UTC);
+    }
+
+    // Value of count decimal digits at offset, or -1 if any is not a digit
+    private static int digits(CharSequence s, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // Same computation as LocalDate.toEpochDay() for years 0 to 9999
+    private static long epochDay(int year, int month, int day) {
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12;
+        total += day - 1;
+        if (month > 2) {
+            total--;
+            if (!isLeapYear(year)) {
+                total--;
+            }
+        }
+        return total - DAYS_0000_TO_1970;
+    }
+}
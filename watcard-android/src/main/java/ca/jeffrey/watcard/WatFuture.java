@@ -0,0 +1,202 @@
+package ca.jeffrey.watcard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.Call;
+
+/**
+ * Result of an asynchronous {@code WatAccount} request. The underlying calls are run with OkHttp's {@code enqueue},
+ * so no thread is blocked while waiting for the server. Callbacks are delivered on the executor the future was
+ * created with, and cancelling the future cancels its calls.
+ *
+ * @param <T> result type
+ */
+public class WatFuture<T> implements Future<T> {
+
+    // Runs callbacks on whichever thread completes the future
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Executor executor;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<Call> calls = new ArrayList<>();
+    private final List<WatCallback<? super T>> callbacks = new ArrayList<>();
+
+    private boolean done;
+    private boolean cancelled;
+    private T result;
+    private Throwable failure;
+
+    /**
+     * Constructor
+     *
+     * @param executor executor on which callbacks are run
+     */
+    WatFuture(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Associates a call with this future so that it is cancelled along with it.
+     *
+     * @param call OkHttp call
+     */
+    void addCall(Call call) {
+        boolean cancel;
+        synchronized (this) {
+            cancel = cancelled;
+            if (!cancel) {
+                calls.add(call);
+            }
+        }
+        if (cancel) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * Completes the future with a result.
+     *
+     * @param value result
+     * @return true if this call completed the future
+     */
+    boolean complete(T value) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            result = value;
+            done = true;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Completes the future with a failure.
+     *
+     * @param t cause
+     * @return true if this call completed the future
+     */
+    boolean fail(Throwable t) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            failure = t;
+            done = true;
+        }
+        finish();
+        return true;
+    }
+
+    private void finish() {
+        latch.countDown();
+
+        List<WatCallback<? super T>> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (WatCallback<? super T> callback : pending) {
+            dispatch(callback);
+        }
+    }
+
+    private void dispatch(final WatCallback<? super T> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failure == null) {
+                    callback.onSuccess(result);
+                }
+                else {
+                    callback.onFailure(failure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers a callback. If the future is already done, the callback is dispatched right away.
+     *
+     * @param callback callback to notify
+     * @return this future
+     */
+    public WatFuture<T> addCallback(WatCallback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        dispatch(callback);
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Call> toCancel;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            // Together, so that a concurrent complete() or fail() cannot win after cancelled is set
+            cancelled = true;
+            failure = new CancellationException();
+            done = true;
+            toCancel = new ArrayList<>(calls);
+        }
+        for (Call call : toCancel) {
+            call.cancel();
+        }
+        finish();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+package ca.jeffrey.watcard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values, such as durations in nanoseconds, with a fixed relative precision in the
+ * style of HdrHistogram. Values below 128 are counted exactly; larger values fall into buckets of 64 per power of two,
+ * so any recorded value is reported within about 1.6%. Recording never allocates or locks.
+ */
+public class WatHistogram {
+
+    // Values below LINEAR are counted exactly
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for Long.MAX_VALUE
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // Retry
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    // Largest value that falls into a bucket
+    private static long highestValueOf(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long top = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the value at or below which the given percentage of the recorded values fall.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return value at the percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(bucket), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return smallest recorded value, or 0 if nothing was recorded
+     */
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    /**
+     * @return largest recorded value, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        return count.get() == 0 ? 0 : max.get();
+    }
+
+    public double getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be partly kept.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Formats the count and main percentiles of nanosecond values in the given unit.
+     *
+     * @param unit unit to display values in
+     * @return summary line
+     */
+    public String toString(TimeUnit unit) {
+        return String.format("count=%d p50=%d p90=%d p99=%d max=%d %s", getCount(),
+                unit.convert(getValueAtPercentile(50), TimeUnit.NANOSECONDS),
+                unit.convert(getValueAtPercentile(90), TimeUnit.NANOSECONDS),
+                unit.convert(getValueAtPercentile(99), TimeUnit.NANOSECONDS),
+                unit.convert(getMax(), TimeUnit.NANOSECONDS), unit.name().toLowerCase());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%d p90=%d p99=%d max=%d", getCount(), getValueAtPercentile(50),
+                getValueAtPercentile(90), getValueAtPercentile(99), getMax());
+    }
+}
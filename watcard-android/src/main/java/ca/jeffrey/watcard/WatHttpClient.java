@@ -0,0 +1,72 @@
+package ca.jeffrey.watcard;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * Holds the process-wide {@code OkHttpClient} shared by every {@code WatSession}. Sessions derive their own client from
+ * it with {@link OkHttpClient#newBuilder()}, so cookies stay per-session while the connection pool, dispatcher and TLS
+ * sessions are reused across all of them.
+ */
+public final class WatHttpClient {
+
+    // Defaults used when no client has been supplied
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 300;
+    public static final long DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    public static final long DEFAULT_READ_TIMEOUT_SECONDS = 30;
+    public static final long DEFAULT_WRITE_TIMEOUT_SECONDS = 10;
+
+    private static OkHttpClient sharedClient;
+
+    private WatHttpClient() {
+    }
+
+    /**
+     * Returns the shared client, creating one with the default settings on first use.
+     *
+     * @return shared {@code OkHttpClient}
+     */
+    public static synchronized OkHttpClient getSharedClient() {
+        if (sharedClient == null) {
+            sharedClient = create(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_SECONDS,
+                    DEFAULT_CONNECT_TIMEOUT_SECONDS, DEFAULT_READ_TIMEOUT_SECONDS, DEFAULT_WRITE_TIMEOUT_SECONDS);
+        }
+        return sharedClient;
+    }
+
+    /**
+     * Replaces the shared client. Only sessions created afterwards will use it.
+     *
+     * @param client client to share, must not have a cookie jar of its own
+     */
+    public static synchronized void setSharedClient(OkHttpClient client) {
+        if (client == null) {
+            throw new IllegalArgumentException("client == null");
+        }
+        sharedClient = client;
+    }
+
+    /**
+     * Builds a client with its own connection pool and the given limits, suitable for
+     * {@link #setSharedClient(OkHttpClient)} or {@link WatSession#WatSession(OkHttpClient)}.
+     *
+     * @param maxIdleConnections    maximum number of idle connections kept in the pool
+     * @param keepAliveSeconds      how long an idle connection is kept alive
+     * @param connectTimeoutSeconds connect timeout
+     * @param readTimeoutSeconds    read timeout
+     * @param writeTimeoutSeconds   write timeout
+     * @return new {@code OkHttpClient}
+     */
+    public static OkHttpClient create(int maxIdleConnections, long keepAliveSeconds, long connectTimeoutSeconds,
+                                      long readTimeoutSeconds, long writeTimeoutSeconds) {
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
+                .connectTimeout(connectTimeoutSeconds, TimeUnit.SECONDS)
+                .readTimeout(readTimeoutSeconds, TimeUnit.SECONDS)
+                .writeTimeout(writeTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+}
@@ -0,0 +1,96 @@
+package ca.jeffrey.watcard;
+
+/**
+ * Receives timings and counts for the requests made through a {@code WatSession} and the parsing of their responses,
+ * see {@link WatSession#setMetrics(WatMetrics)}. Endpoints are named after the last segment of the request path, e.g.
+ * {@code "Balances"} or {@code "TransactionsPass"}.
+ * <p>
+ * Methods are called on the thread that ran the request, which is a dispatcher thread for asynchronous requests, and
+ * must return quickly. All durations are in nanoseconds.
+ */
+public interface WatMetrics {
+
+    /**
+     * Discards everything. Used unless another implementation is set.
+     */
+    WatMetrics NONE = new WatMetrics() {
+        @Override
+        public void onDnsLookup(String host, long nanos) {
+        }
+
+        @Override
+        public void onResponseHeaders(String endpoint, int code, long connectNanos, long serverNanos) {
+        }
+
+        @Override
+        public void onResponseComplete(String endpoint, long totalNanos, long bodyNanos, long bytesSent,
+                                       long bytesReceived) {
+        }
+
+        @Override
+        public void onParse(String endpoint, long nanos, int rows) {
+        }
+
+        @Override
+        public void onFailure(String endpoint, Throwable t) {
+        }
+
+        @Override
+        public void onRetry(String endpoint) {
+        }
+    };
+
+    /**
+     * Called after a host name was resolved.
+     *
+     * @param host  host name
+     * @param nanos time spent resolving it
+     */
+    void onDnsLookup(String host, long nanos);
+
+    /**
+     * Called when the response headers of a request, or of one of its redirects, have been received.
+     *
+     * @param endpoint     endpoint name
+     * @param code         HTTP status code
+     * @param connectNanos time until the request could be sent: waiting for, or setting up, the connection (DNS, TCP
+     *                     and TLS), close to 0 when a pooled connection is reused
+     * @param serverNanos  time from sending the request to receiving the response headers
+     */
+    void onResponseHeaders(String endpoint, int code, long connectNanos, long serverNanos);
+
+    /**
+     * Called once the response body has been read completely or closed.
+     *
+     * @param endpoint      endpoint name
+     * @param totalNanos    time from starting the request to the end of the body
+     * @param bodyNanos     time from the response headers to the end of the body
+     * @param bytesSent     size of the request body
+     * @param bytesReceived size of the response body read
+     */
+    void onResponseComplete(String endpoint, long totalNanos, long bodyNanos, long bytesSent, long bytesReceived);
+
+    /**
+     * Called after a response has been parsed.
+     *
+     * @param endpoint endpoint name
+     * @param nanos    time spent parsing, including reading the body while it streams in
+     * @param rows     number of rows or records parsed
+     */
+    void onParse(String endpoint, long nanos, int rows);
+
+    /**
+     * Called when a request or the parsing of its response fails.
+     *
+     * @param endpoint endpoint name
+     * @param t        cause
+     */
+    void onFailure(String endpoint, Throwable t);
+
+    /**
+     * Called when a request is sent again after logging in again.
+     *
+     * @param endpoint endpoint name
+     */
+    void onRetry(String endpoint);
+}
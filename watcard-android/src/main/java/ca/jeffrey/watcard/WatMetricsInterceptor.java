@@ -0,0 +1,158 @@
+package ca.jeffrey.watcard;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Times the requests of one {@code WatSession} and reports them to its {@code WatMetrics}. The application
+ * interceptor marks the start of each call, the network interceptor times each exchange with the server, and the
+ * response body is wrapped to time and count its download. Both interceptors of a call run on the same thread, which
+ * is how the start time is handed from one to the other.
+ */
+final class WatMetricsInterceptor implements Interceptor {
+
+    private final WatSession session;
+    private final Interceptor networkInterceptor;
+    private final Dns dns;
+
+    // Time at which the current call on this thread started, or its previous exchange ended
+    private static final ThreadLocal<long[]> LAST_MARK = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    WatMetricsInterceptor(WatSession session, final Dns baseDns) {
+        this.session = session;
+
+        networkInterceptor = new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                long[] mark = LAST_MARK.get();
+                long sent = System.nanoTime();
+                long connectNanos = sent - mark[0];
+
+                Response response = chain.proceed(chain.request());
+                long received = System.nanoTime();
+                mark[0] = received;
+
+                WatMetricsInterceptor.this.session.getMetrics().onResponseHeaders(endpointOf(chain.request().url()),
+                        response.code(), connectNanos, received - sent);
+                return response;
+            }
+        };
+
+        dns = new Dns() {
+            @Override
+            public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                long start = System.nanoTime();
+                List<InetAddress> addresses = baseDns.lookup(hostname);
+                WatMetricsInterceptor.this.session.getMetrics().onDnsLookup(hostname, System.nanoTime() - start);
+                return addresses;
+            }
+        };
+    }
+
+    Interceptor networkInterceptor() {
+        return networkInterceptor;
+    }
+
+    Dns dns() {
+        return dns;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final WatMetrics metrics = session.getMetrics();
+        Request request = chain.request();
+        final String endpoint = endpointOf(request.url());
+        final long start = System.nanoTime();
+        LAST_MARK.get()[0] = start;
+
+        Response response;
+        try {
+            response = chain.proceed(request);
+        }
+        catch (IOException e) {
+            metrics.onFailure(endpoint, e);
+            throw e;
+        }
+
+        final long headersReceived = System.nanoTime();
+        final long bytesSent = request.body() != null ? Math.max(request.body().contentLength(), 0) : 0;
+        ResponseBody body = response.body();
+        if (body == null) {
+            metrics.onResponseComplete(endpoint, headersReceived - start, 0, bytesSent, 0);
+            return response;
+        }
+
+        // Reports once, when the body is exhausted or closed
+        Source counting = new ForwardingSource(body.source()) {
+            private long bytesReceived;
+            private boolean reported;
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long read;
+                try {
+                    read = super.read(sink, byteCount);
+                }
+                catch (IOException e) {
+                    metrics.onFailure(endpoint, e);
+                    throw e;
+                }
+                if (read == -1) {
+                    report();
+                }
+                else {
+                    bytesReceived += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                report();
+                super.close();
+            }
+
+            private void report() {
+                if (!reported) {
+                    reported = true;
+                    long end = System.nanoTime();
+                    metrics.onResponseComplete(endpoint, end - start, end - headersReceived, bytesSent,
+                            bytesReceived);
+                }
+            }
+        };
+
+        return response.newBuilder()
+                .body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(counting)))
+                .build();
+    }
+
+    /**
+     * Names the endpoint of a URL after the last segment of its path.
+     *
+     * @param url request URL
+     * @return endpoint name
+     */
+    static String endpointOf(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        return segments.get(segments.size() - 1);
+    }
+}
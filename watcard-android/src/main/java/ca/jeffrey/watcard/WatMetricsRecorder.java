@@ -0,0 +1,198 @@
+package ca.jeffrey.watcard;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code WatMetrics} that keeps everything in memory: latency histograms and counters per endpoint, and a histogram of
+ * DNS lookups. Meant for tests, benchmarks and debugging screens.
+ */
+public class WatMetricsRecorder implements WatMetrics {
+
+    /**
+     * Measurements of one endpoint.
+     */
+    public static class Endpoint {
+        private final WatHistogram latency = new WatHistogram();
+        private final WatHistogram connect = new WatHistogram();
+        private final WatHistogram server = new WatHistogram();
+        private final WatHistogram body = new WatHistogram();
+        private final WatHistogram parse = new WatHistogram();
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+
+        /**
+         * @return time from starting each request to the end of its body, in nanoseconds
+         */
+        public WatHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return time waiting for or setting up a connection, in nanoseconds
+         */
+        public WatHistogram getConnect() {
+            return connect;
+        }
+
+        /**
+         * @return time from sending a request to receiving its response headers, in nanoseconds
+         */
+        public WatHistogram getServer() {
+            return server;
+        }
+
+        /**
+         * @return time downloading response bodies, in nanoseconds
+         */
+        public WatHistogram getBody() {
+            return body;
+        }
+
+        /**
+         * @return time parsing responses, in nanoseconds
+         */
+        public WatHistogram getParse() {
+            return parse;
+        }
+
+        public long getRequestCount() {
+            return requests.get();
+        }
+
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        public long getRetryCount() {
+            return retries.get();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        public long getRowCount() {
+            return rows.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d failures=%d retries=%d sent=%dB received=%dB rows=%d%n"
+                            + "  latency: %s%n  connect: %s%n  server:  %s%n  body:    %s%n  parse:   %s",
+                    getRequestCount(), getFailureCount(), getRetryCount(), getBytesSent(), getBytesReceived(),
+                    getRowCount(), latency.toString(TimeUnit.MILLISECONDS), connect.toString(TimeUnit.MILLISECONDS),
+                    server.toString(TimeUnit.MILLISECONDS), body.toString(TimeUnit.MILLISECONDS),
+                    parse.toString(TimeUnit.MICROSECONDS));
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final WatHistogram dns = new WatHistogram();
+
+    private Endpoint endpoint(String name) {
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            synchronized (endpoints) {
+                endpoint = endpoints.get(name);
+                if (endpoint == null) {
+                    endpoint = new Endpoint();
+                    endpoints.put(name, endpoint);
+                }
+            }
+        }
+        return endpoint;
+    }
+
+    @Override
+    public void onDnsLookup(String host, long nanos) {
+        dns.record(nanos);
+    }
+
+    @Override
+    public void onResponseHeaders(String endpoint, int code, long connectNanos, long serverNanos) {
+        Endpoint e = endpoint(endpoint);
+        e.connect.record(connectNanos);
+        e.server.record(serverNanos);
+    }
+
+    @Override
+    public void onResponseComplete(String endpoint, long totalNanos, long bodyNanos, long bytesSent,
+                                   long bytesReceived) {
+        Endpoint e = endpoint(endpoint);
+        e.requests.incrementAndGet();
+        e.latency.record(totalNanos);
+        e.body.record(bodyNanos);
+        e.bytesSent.addAndGet(bytesSent);
+        e.bytesReceived.addAndGet(bytesReceived);
+    }
+
+    @Override
+    public void onParse(String endpoint, long nanos, int rows) {
+        Endpoint e = endpoint(endpoint);
+        e.parse.record(nanos);
+        e.rows.addAndGet(rows);
+    }
+
+    @Override
+    public void onFailure(String endpoint, Throwable t) {
+        endpoint(endpoint).failures.incrementAndGet();
+    }
+
+    @Override
+    public void onRetry(String endpoint) {
+        endpoint(endpoint).retries.incrementAndGet();
+    }
+
+    /**
+     * @param name endpoint name, e.g. {@code "Balances"}
+     * @return measurements of the endpoint, or null if it was never requested
+     */
+    public Endpoint getEndpoint(String name) {
+        return endpoints.get(name);
+    }
+
+    /**
+     * @return measurements of every endpoint requested so far, by endpoint name
+     */
+    public Map<String, Endpoint> getEndpoints() {
+        return new TreeMap<>(endpoints);
+    }
+
+    /**
+     * @return time spent resolving host names, in nanoseconds
+     */
+    public WatHistogram getDns() {
+        return dns;
+    }
+
+    /**
+     * Discards all measurements.
+     */
+    public void reset() {
+        endpoints.clear();
+        dns.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("dns: ").append(dns.toString(TimeUnit.MILLISECONDS)).append(String.format("%n"));
+        for (Map.Entry<String, Endpoint> entry : getEndpoints().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package ca.jeffrey.watcard;
+
+import java.io.IOException;
+
+/**
+ * Account photo as downloaded from the WatCard site, along with the validators used to check it for changes. Returned
+ * by {@link WatAccount#loadPhoto()}.
+ * <p>
+ * The image dimensions are read from the JPEG or PNG header, so a screen showing the photo small can pick a sample
+ * size and decode it once at about the size it needs, e.g. on Android:
+ * <pre>
+ * Bitmap thumbnail = photo.decode(96, 96, new WatPhoto.Decoder&lt;Bitmap&gt;() {
+ *     public Bitmap decode(byte[] data, int sampleSize) {
+ *         BitmapFactory.Options options = new BitmapFactory.Options();
+ *         options.inSampleSize = sampleSize;
+ *         return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+ *     }
+ * });
+ * </pre>
+ */
+public final class WatPhoto {
+
+    /**
+     * Decodes image data, e.g. with {@code BitmapFactory} on Android.
+     *
+     * @param <T> decoded image type
+     */
+    public interface Decoder<T> {
+        /**
+         * @param data       encoded image
+         * @param sampleSize power of two by which to shrink both dimensions while decoding, 1 for the full size
+         * @return decoded image
+         * @throws IOException if the image cannot be decoded
+         */
+        T decode(byte[] data, int sampleSize) throws IOException;
+    }
+
+    private final byte[] data;
+    private final String contentType;
+    private final String etag;
+    private final String lastModified;
+    private final int width;
+    private final int height;
+    // When the server last confirmed this copy, in milliseconds since the epoch
+    private final long validatedAt;
+
+    WatPhoto(byte[] data, String contentType, String etag, String lastModified, long validatedAt) {
+        this.data = data;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.validatedAt = validatedAt;
+
+        long size = readSize(data);
+        this.width = (int) (size >>> 32);
+        this.height = (int) size;
+    }
+
+    /**
+     * @param validatedAt new validation time
+     * @return copy of this photo confirmed by the server at {@code validatedAt}
+     */
+    WatPhoto withValidatedAt(long validatedAt) {
+        return new WatPhoto(data, contentType, etag, lastModified, validatedAt);
+    }
+
+    /**
+     * @return encoded image, not to be modified
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return MIME type sent by the server, or null
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return {@code ETag} sent by the server, or null
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return {@code Last-Modified} date sent by the server, or null
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return image width in pixels, or -1 if the header could not be read
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return image height in pixels, or -1 if the header could not be read
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return when the server last confirmed this copy, in milliseconds since the epoch
+     */
+    public long getValidatedAt() {
+        return validatedAt;
+    }
+
+    /**
+     * Returns the largest power of two by which the image can be shrunk while staying at least as large as the
+     * requested size in both dimensions.
+     *
+     * @param reqWidth  width needed, 0 for any
+     * @param reqHeight height needed, 0 for any
+     * @return sample size, 1 if the image dimensions are unknown or no size is requested
+     */
+    public int getSampleSize(int reqWidth, int reqHeight) {
+        if (width <= 0 || height <= 0 || (reqWidth <= 0 && reqHeight <= 0)) {
+            return 1;
+        }
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight
+                && width / (sampleSize * 2) > 0 && height / (sampleSize * 2) > 0) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes the image at about the requested size.
+     *
+     * @param reqWidth  width needed, 0 for any
+     * @param reqHeight height needed, 0 for any
+     * @param decoder   decoder to use
+     * @param <T>       decoded image type
+     * @return decoded image, at least as large as requested unless the photo is smaller
+     * @throws IOException if the image cannot be decoded
+     */
+    public <T> T decode(int reqWidth, int reqHeight, Decoder<T> decoder) throws IOException {
+        return decoder.decode(data, getSampleSize(reqWidth, reqHeight));
+    }
+
+    /**
+     * Reads the dimensions of a JPEG or PNG image from its header.
+     *
+     * @return width in the high and height in the low 32 bits, both -1 if unknown
+     */
+    private static long readSize(byte[] data) {
+        // PNG: signature, then the IHDR chunk with width and height
+        if (data.length >= 24 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return ((long) readInt(data, 16) << 32) | (readInt(data, 20) & 0xFFFFFFFFL);
+        }
+
+        // JPEG: walk the segments up to a start of frame
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return -1L;
+        }
+        int i = 2;
+        while (i + 9 < data.length) {
+            if ((data[i] & 0xFF) != 0xFF) {
+                return -1L;
+            }
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                i++;
+                continue;
+            }
+            int length = ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            // SOF0 to SOF15, except DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int height = ((data[i + 5] & 0xFF) << 8) | (data[i + 6] & 0xFF);
+                int width = ((data[i + 7] & 0xFF) << 8) | (data[i + 8] & 0xFF);
+                return ((long) width << 32) | height;
+            }
+            if (marker == 0xD9 || marker == 0xDA || length < 2) {
+                // End of image or start of scan before any frame header
+                return -1L;
+            }
+            i += 2 + length;
+        }
+        return -1L;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+}
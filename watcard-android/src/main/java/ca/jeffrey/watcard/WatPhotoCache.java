@@ -0,0 +1,347 @@
+package ca.jeffrey.watcard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okio.ByteString;
+
+/**
+ * Size-bounded cache of account photos in memory and on disk, each evicting the least recently used photos first.
+ * Install it with {@link WatAccount#setPhotoCache(WatPhotoCache)}; one cache can be shared by many accounts.
+ * <p>
+ * A photo confirmed by the server within the max age is served without a request. Once older, it is revalidated with
+ * {@code If-None-Match} and {@code If-Modified-Since}, and only downloaded again if it changed. Photos on disk survive
+ * restarts; the order of their use is kept in the files' modification times.
+ */
+public class WatPhotoCache {
+
+    private static final int MAGIC = 0x57415450; // "WATP"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".photo";
+
+    // Orders files from least to most recently used
+    private static final Comparator<File> BY_LAST_MODIFIED = new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+            long x = a.lastModified();
+            long y = b.lastModified();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    private final File directory;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+    private long maxAgeMillis = TimeUnit.DAYS.toMillis(1);
+
+    // Both in access order, least recently used first
+    private final LinkedHashMap<String, WatPhoto> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+
+    /**
+     * Creates a cache kept in memory only.
+     *
+     * @param maxMemoryBytes total size of the photos kept in memory
+     */
+    public WatPhotoCache(long maxMemoryBytes) {
+        this(null, 0, maxMemoryBytes);
+    }
+
+    /**
+     * Creates a cache kept in memory and in a directory. Photos already in the directory are picked up.
+     *
+     * @param directory      directory holding the photos, created if needed, or null to keep them in memory only
+     * @param maxDiskBytes   total size of the photo files
+     * @param maxMemoryBytes total size of the photos kept in memory
+     */
+    public WatPhotoCache(File directory, long maxDiskBytes, long maxMemoryBytes) {
+        if (maxDiskBytes < 0 || maxMemoryBytes < 0) {
+            throw new IllegalArgumentException("Cache sizes must not be negative");
+        }
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+
+        if (directory != null) {
+            directory.mkdirs();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                Arrays.sort(files, BY_LAST_MODIFIED);
+                for (File file : files) {
+                    if (file.getName().endsWith(SUFFIX)) {
+                        disk.put(file.getName(), file.length());
+                        diskBytes += file.length();
+                    }
+                }
+                trimDisk();
+            }
+        }
+    }
+
+    /**
+     * @param maxAge how long a photo is served without asking the server whether it changed, 0 to always ask
+     * @param unit   unit of {@code maxAge}
+     */
+    public synchronized void setMaxAge(long maxAge, TimeUnit unit) {
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge < 0");
+        }
+        maxAgeMillis = unit.toMillis(maxAge);
+    }
+
+    /**
+     * @param url photo URL
+     * @return cached photo if the server confirmed it within the max age, null otherwise
+     */
+    synchronized WatPhoto getFresh(String url) {
+        WatPhoto photo = get(url);
+        if (photo == null || System.currentTimeMillis() - photo.getValidatedAt() >= maxAgeMillis) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return photo;
+    }
+
+    /**
+     * @param url photo URL
+     * @return cached photo of any age, or null
+     */
+    synchronized WatPhoto get(String url) {
+        WatPhoto photo = memory.get(url);
+        if (photo != null) {
+            return photo;
+        }
+
+        String name = fileName(url);
+        if (disk.get(name) == null) {
+            return null;
+        }
+        File file = new File(directory, name);
+        try {
+            photo = read(file, url);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            photo = null;
+        }
+        if (photo == null) {
+            removeFile(name);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        putMemory(url, photo);
+        return photo;
+    }
+
+    /**
+     * Records that the server confirmed a cached photo is unchanged.
+     *
+     * @param url   photo URL
+     * @param photo cached photo
+     * @return the photo with its validation time updated
+     */
+    synchronized WatPhoto revalidated(String url, WatPhoto photo) {
+        notModified.incrementAndGet();
+        WatPhoto updated = photo.withValidatedAt(System.currentTimeMillis());
+        put(url, updated);
+        return updated;
+    }
+
+    /**
+     * Stores a downloaded photo.
+     *
+     * @param url   photo URL
+     * @param photo downloaded photo
+     */
+    synchronized void downloaded(String url, WatPhoto photo) {
+        downloads.incrementAndGet();
+        put(url, photo);
+    }
+
+    private void put(String url, WatPhoto photo) {
+        putMemory(url, photo);
+        if (directory == null) {
+            return;
+        }
+
+        String name = fileName(url);
+        if (photo.getData().length > maxDiskBytes) {
+            removeFile(name);
+            return;
+        }
+        try {
+            write(new File(directory, name), url, photo);
+        }
+        catch (IOException e) {
+            // Still cached in memory
+            e.printStackTrace();
+            return;
+        }
+        Long previous = disk.put(name, new File(directory, name).length());
+        diskBytes += disk.get(name) - (previous == null ? 0 : previous);
+        trimDisk();
+    }
+
+    private void putMemory(String url, WatPhoto photo) {
+        if (photo.getData().length > maxMemoryBytes) {
+            WatPhoto previous = memory.remove(url);
+            if (previous != null) {
+                memoryBytes -= previous.getData().length;
+            }
+            return;
+        }
+        WatPhoto previous = memory.put(url, photo);
+        memoryBytes += photo.getData().length - (previous == null ? 0 : previous.getData().length);
+
+        Iterator<Map.Entry<String, WatPhoto>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            memoryBytes -= eldest.next().getValue().getData().length;
+            eldest.remove();
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            diskBytes -= entry.getValue();
+            eldest.remove();
+            new File(directory, entry.getKey()).delete();
+        }
+    }
+
+    private void removeFile(String name) {
+        Long size = disk.remove(name);
+        if (size != null) {
+            diskBytes -= size;
+        }
+        new File(directory, name).delete();
+    }
+
+    /**
+     * Removes every cached photo from memory and disk.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0;
+        for (String name : disk.keySet()) {
+            new File(directory, name).delete();
+        }
+        disk.clear();
+        diskBytes = 0;
+    }
+
+    /**
+     * @return photos served without a request
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return photos the server confirmed unchanged
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * @return photos downloaded
+     */
+    public long getDownloadCount() {
+        return downloads.get();
+    }
+
+    public synchronized long getMemorySize() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskSize() {
+        return diskBytes;
+    }
+
+    // File name of a URL, which may contain characters not allowed in file names
+    private static String fileName(String url) {
+        return ByteString.encodeUtf8(url).md5().hex() + SUFFIX;
+    }
+
+    // Written to a temporary file first so that a crash never leaves a partial photo
+    private static void write(File file, String url, WatPhoto photo) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(url);
+            writeNullable(out, photo.getContentType());
+            writeNullable(out, photo.getEtag());
+            writeNullable(out, photo.getLastModified());
+            out.writeLong(photo.getValidatedAt());
+            out.writeInt(photo.getData().length);
+            out.write(photo.getData());
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    /**
+     * @return the photo, or null if the file holds another URL or an older format
+     */
+    private static WatPhoto read(File file, String url) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(url)) {
+                return null;
+            }
+            String contentType = readNullable(in);
+            String etag = readNullable(in);
+            String lastModified = readNullable(in);
+            long validatedAt = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > file.length()) {
+                throw new IOException("Corrupt photo file " + file);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return new WatPhoto(data, contentType, etag, lastModified, validatedAt);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
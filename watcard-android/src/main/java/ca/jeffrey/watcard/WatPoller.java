@@ -0,0 +1,414 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.temporal.ChronoUnit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls an account in the background and reports only what changed: balances that differ from the previous poll and
+ * transactions newer than the last one seen.
+ * <p>
+ * Each poll loads the Balances page and skips parsing it when its balance table and total hash to the same
+ * fingerprint as last time. Transactions are requested from the newest one seen and streamed newest first; reading
+ * stops at the first transaction older than that, so an idle account costs a row or two of parsing.
+ * <p>
+ * Polls run every interval, randomized by the jitter so many pollers do not line up. While nothing changes, the
+ * interval grows by the backoff factor up to the maximum interval; a change or {@link #pollNow()} resets it. The first
+ * poll only records the current state, including the newest transaction on the server, and reports nothing.
+ */
+public class WatPoller {
+
+    /**
+     * Receives changes. Called on the poller's thread.
+     */
+    public interface Listener {
+        /**
+         * @param changes balances that differ from the previous poll
+         */
+        void onBalancesChanged(List<BalanceChange> changes);
+
+        /**
+         * @param transactions transactions completed since the last one seen, newest first
+         */
+        void onNewTransactions(List<WatTransaction> transactions);
+
+        /**
+         * @param t why a poll failed; polling continues at the backed off interval
+         */
+        void onError(Throwable t);
+    }
+
+    /**
+     * Balance of one type before and after a change.
+     */
+    public static class BalanceChange {
+        private final WatBalanceType type;
+        private final WatBalance previous;
+        private final WatBalance current;
+
+        BalanceChange(WatBalanceType type, WatBalance previous, WatBalance current) {
+            this.type = type;
+            this.previous = previous;
+            this.current = current;
+        }
+
+        public WatBalanceType getType() {
+            return type;
+        }
+
+        public WatBalance getPrevious() {
+            return previous;
+        }
+
+        public WatBalance getCurrent() {
+            return current;
+        }
+
+        /**
+         * @return change of the balance in cents
+         */
+        public int getDeltaCents() {
+            return current.getValueCents() - previous.getValueCents();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s -> %s", type, previous, current);
+        }
+    }
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "WatPoller-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    // How far back the first poll looks for the newest transaction
+    private static final int BASELINE_DAYS = 365;
+
+    // Balance types in the order of the Balances page
+    private static final WatBalanceType[] TYPES = WatBalanceType.values();
+
+    private final WatAccount account;
+    private final Listener listener;
+    private final Random random = new Random();
+
+    private long intervalMillis = TimeUnit.MINUTES.toMillis(5);
+    private long maxIntervalMillis = TimeUnit.HOURS.toMillis(1);
+    private double jitter = 0.1;
+    private double backoff = 1.5;
+    private boolean pollTransactions = true;
+
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> next;
+    // Incremented by pollNow() so the poll it replaces does not schedule another one
+    private int chain;
+    private long currentIntervalMillis;
+
+    // Held for a whole poll, so a poll left running by stop() never overlaps one of a later start()
+    private final Object pollLock = new Object();
+    // State of the last poll, guarded by pollLock
+    private long balanceFingerprint;
+    private List<WatBalance> lastBalances;
+    private LocalDateTime newest;
+    // Transactions in the second of newest and how many times each was seen, to tell them from new ones in the same
+    // second, including identical ones
+    private final Map<WatTransaction, Integer> seenAtNewest = new HashMap<>();
+    private int polls;
+
+    /**
+     * Constructor
+     *
+     * @param account  logged in account to poll
+     * @param listener receives the changes
+     */
+    public WatPoller(WatAccount account, Listener listener) {
+        this.account = account;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how often to poll.
+     *
+     * @param interval    time between polls while the account changes
+     * @param maxInterval longest time between polls after backing off
+     * @param unit        unit of {@code interval} and {@code maxInterval}
+     */
+    public synchronized void setInterval(long interval, long maxInterval, TimeUnit unit) {
+        if (interval <= 0 || maxInterval < interval) {
+            throw new IllegalArgumentException("Invalid interval");
+        }
+        intervalMillis = unit.toMillis(interval);
+        maxIntervalMillis = unit.toMillis(maxInterval);
+    }
+
+    /**
+     * @param jitter fraction of the interval by which each delay is randomly shortened or lengthened, 0 to 1
+     */
+    public synchronized void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param backoff factor the interval grows by after each poll without changes, 1 to keep it fixed
+     */
+    public synchronized void setBackoff(double backoff) {
+        if (backoff < 1) {
+            throw new IllegalArgumentException("backoff < 1");
+        }
+        this.backoff = backoff;
+    }
+
+    /**
+     * @param pollTransactions false to only poll balances
+     */
+    public synchronized void setPollTransactions(boolean pollTransactions) {
+        this.pollTransactions = pollTransactions;
+    }
+
+    /**
+     * Starts polling, with the first poll right away. Transactions completed before then are not reported.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        currentIntervalMillis = intervalMillis;
+        schedule(0);
+    }
+
+    /**
+     * Stops polling. A poll in progress is completed.
+     */
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+        if (next != null) {
+            next.cancel(false);
+        }
+        timer.shutdown();
+        timer = null;
+        next = null;
+        // A poll still running must not reschedule itself on the timer of a later start()
+        chain++;
+    }
+
+    public synchronized boolean isRunning() {
+        return timer != null;
+    }
+
+    /**
+     * Polls as soon as possible and resets the interval, e.g. when the app comes to the foreground.
+     */
+    public synchronized void pollNow() {
+        if (timer == null) {
+            return;
+        }
+        if (next != null) {
+            next.cancel(false);
+        }
+        chain++;
+        currentIntervalMillis = intervalMillis;
+        schedule(0);
+    }
+
+    /**
+     * @param unit unit of the result
+     * @return current time between polls, before jitter
+     */
+    public synchronized long getCurrentInterval(TimeUnit unit) {
+        return unit.convert(currentIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return number of polls completed
+     */
+    public synchronized int getPollCount() {
+        return polls;
+    }
+
+    private void schedule(long delayMillis) {
+        final int scheduledChain = chain;
+        next = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean changed = false;
+                synchronized (pollLock) {
+                    // Replaced by pollNow() or stopped while waiting for an earlier poll to finish
+                    if (!isCurrent(scheduledChain)) {
+                        return;
+                    }
+                    try {
+                        changed = poll();
+                    }
+                    catch (Exception e) {
+                        listener.onError(e);
+                    }
+                }
+                reschedule(scheduledChain, changed);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized boolean isCurrent(int scheduledChain) {
+        return timer != null && scheduledChain == chain;
+    }
+
+    private synchronized void reschedule(int scheduledChain, boolean changed) {
+        polls++;
+        if (timer == null || scheduledChain != chain) {
+            return;
+        }
+        currentIntervalMillis = changed
+                ? intervalMillis : Math.min(maxIntervalMillis, (long) (currentIntervalMillis * backoff));
+        long spread = (long) (currentIntervalMillis * jitter);
+        long delay = currentIntervalMillis + (spread > 0 ? (long) ((random.nextDouble() * 2 - 1) * spread) : 0);
+        schedule(Math.max(0, delay));
+    }
+
+    /**
+     * Runs one poll and reports what changed.
+     *
+     * @return true if anything changed
+     */
+    private boolean poll() throws IOException {
+        boolean first = lastBalances == null;
+        boolean changed = pollBalances(first);
+        if (pollTransactions) {
+            changed |= pollTransactions(first);
+        }
+        return changed;
+    }
+
+    private boolean pollBalances(boolean first) throws IOException {
+        long fingerprint = account.loadBalancesIfChanged(balanceFingerprint);
+        if (fingerprint == balanceFingerprint) {
+            return false;
+        }
+        balanceFingerprint = fingerprint;
+
+        List<WatBalance> balances = account.getBalances();
+        List<BalanceChange> changes = new ArrayList<>();
+        if (!first && balances.size() == lastBalances.size()) {
+            for (int i = 0; i < balances.size() && i < TYPES.length; i++) {
+                WatBalance previous = lastBalances.get(i);
+                WatBalance current = balances.get(i);
+                if (previous.getValueCents() != current.getValueCents()
+                        || previous.getLimitCents() != current.getLimitCents()) {
+                    changes.add(new BalanceChange(TYPES[i], previous, current));
+                }
+            }
+        }
+        lastBalances = balances;
+
+        if (changes.isEmpty()) {
+            return false;
+        }
+        listener.onBalancesChanged(Collections.unmodifiableList(changes));
+        return true;
+    }
+
+    private boolean pollTransactions(boolean first) throws IOException {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        // Also when transactions are first polled after the balances, e.g. after setPollTransactions(true)
+        if (first || newest == null) {
+            recordNewest(now);
+            return false;
+        }
+
+        final List<WatTransaction> fresh = new ArrayList<>();
+        final Map<WatTransaction, Integer> known = new HashMap<>(seenAtNewest);
+        // Newest first: stop at the first transaction older than newest, everything after it was reported already
+        account.forEachTransaction(newest, now, new WatTransactionConsumer() {
+            @Override
+            public boolean accept(WatTransaction transaction) {
+                if (transaction.getDateTime().isBefore(newest)) {
+                    return false;
+                }
+                Integer count = known.get(transaction);
+                if (count == null) {
+                    fresh.add(transaction);
+                }
+                else if (count == 1) {
+                    known.remove(transaction);
+                }
+                else {
+                    known.put(transaction, count - 1);
+                }
+                return true;
+            }
+        });
+        if (fresh.isEmpty()) {
+            return false;
+        }
+
+        LocalDateTime latest = fresh.get(0).getDateTime();
+        if (latest.isAfter(newest)) {
+            newest = latest;
+            seenAtNewest.clear();
+        }
+        for (WatTransaction transaction : fresh) {
+            if (transaction.getDateTime().equals(newest)) {
+                Integer count = seenAtNewest.get(transaction);
+                seenAtNewest.put(transaction, count == null ? 1 : count + 1);
+            }
+        }
+        listener.onNewTransactions(Collections.unmodifiableList(fresh));
+        return true;
+    }
+
+    /**
+     * Starts from the newest transaction on the server rather than the device clock, which may be ahead of the
+     * server's local time that transactions are dated in.
+     */
+    private void recordNewest(LocalDateTime now) throws IOException {
+        LocalDateTime begin = now.minusDays(BASELINE_DAYS);
+        final List<WatTransaction> latest = new ArrayList<>();
+        // Newest first: keep every transaction in the second of the first one
+        account.forEachTransaction(account.transactionsUrl(begin, now, 0), new WatTransactionConsumer() {
+            @Override
+            public boolean accept(WatTransaction transaction) {
+                if (!latest.isEmpty() && !transaction.getDateTime().equals(latest.get(0).getDateTime())) {
+                    return false;
+                }
+                latest.add(transaction);
+                return true;
+            }
+        });
+
+        seenAtNewest.clear();
+        if (latest.isEmpty()) {
+            // Everything from here on is new
+            newest = begin;
+            return;
+        }
+        newest = latest.get(0).getDateTime();
+        for (WatTransaction transaction : latest) {
+            Integer count = seenAtNewest.get(transaction);
+            seenAtNewest.put(transaction, count == null ? 1 : count + 1);
+        }
+    }
+}
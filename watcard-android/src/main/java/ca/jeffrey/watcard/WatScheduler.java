@@ -0,0 +1,680 @@
+package ca.jeffrey.watcard;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Paces the requests of every session sharing a client so polling many accounts does not get the server to throttle
+ * or slow down. Install it on the shared client:
+ * <pre>
+ * WatHttpClient.setSharedClient(new WatScheduler().apply(WatHttpClient.getSharedClient()));
+ * </pre>
+ * For each host, a request waits until:
+ * <ul>
+ * <li>a token is available from a bucket refilled at a fixed rate, which bounds the request rate and burst;</li>
+ * <li>fewer requests are in flight, from sending them to closing their response, than the concurrency limit, which is
+ * raised by one per round trip while responses are fast and halved (at most once per round trip) on 429, 5xx,
+ * failures, or when the smoothed latency rises past the tolerance over the lowest latency seen;</li>
+ * <li>no request of a higher priority is waiting. Requests take the priority of their session, see
+ * {@link WatSession#setPriority(Priority)}, so interactive requests go ahead of background syncs.</li>
+ * </ul>
+ * A {@code Retry-After} header on a 429 or 503 response pauses the host for that long, and GET requests answered with
+ * 429 are sent again after the pause, up to twice. Responses must be closed to free their slot, which every request
+ * made by the library does.
+ * <p>
+ * Asynchronous requests made by the library wait in the scheduler without holding a thread and are handed to the
+ * client's dispatcher once let through. A request stops waiting with an {@code InterruptedIOException} when its call is
+ * cancelled or after the max wait, see {@link #setMaxWait(long, TimeUnit)}, so a slot held by an open response cannot
+ * block a request on the same thread forever.
+ */
+public class WatScheduler implements Interceptor {
+
+    /**
+     * Order in which waiting requests are let through.
+     */
+    public enum Priority {
+        INTERACTIVE, BACKGROUND
+    }
+
+    // Times a GET answered with 429 is sent again
+    private static final int MAX_RETRIES = 2;
+    // Longest pause honoured from a Retry-After header
+    private static final long MAX_PAUSE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // How often a blocked request checks whether its call was cancelled
+    private static final long CANCEL_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "WatScheduler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    // Dispatchers of the clients applied to, searched for the call of a blocked request
+    private final List<Dispatcher> dispatchers = new CopyOnWriteArrayList<>();
+    // Requests of asynchronous calls let through before being handed to the dispatcher, by identity
+    private final Set<Request> granted =
+            Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Request, Boolean>()));
+    // Lets asynchronous requests through once tokens refill or a pause ends, and times them out
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+
+    private volatile double permitsPerSecond = 10;
+    private volatile int burst = 10;
+    private volatile int initialLimit = 4;
+    private volatile int minLimit = 1;
+    private volatile int maxLimit = 16;
+    private volatile double latencyTolerance = 2;
+    private volatile long maxWaitNanos = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Sets the token bucket of every host.
+     *
+     * @param permitsPerSecond requests per second sustained, 0 for no rate limit
+     * @param burst            requests that may be sent at once after a quiet period
+     */
+    public void setRate(double permitsPerSecond, int burst) {
+        if (permitsPerSecond < 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Sets the range of the adaptive concurrency limit of every host. Applies to hosts not contacted yet.
+     *
+     * @param initial limit to start with
+     * @param min     lowest limit after backing off
+     * @param max     highest limit reached while responses are fast
+     */
+    public void setConcurrency(int initial, int min, int max) {
+        if (min < 1 || initial < min || max < initial) {
+            throw new IllegalArgumentException("Invalid concurrency limits");
+        }
+        initialLimit = initial;
+        minLimit = min;
+        maxLimit = max;
+    }
+
+    /**
+     * @param tolerance how many times the lowest latency seen the smoothed latency may reach before backing off
+     */
+    public void setLatencyTolerance(double tolerance) {
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("tolerance <= 1");
+        }
+        latencyTolerance = tolerance;
+    }
+
+    /**
+     * Sets how long a request waits for its turn before failing with an {@code InterruptedIOException}.
+     *
+     * @param maxWait longest wait
+     * @param unit    unit of {@code maxWait}
+     */
+    public void setMaxWait(long maxWait, TimeUnit unit) {
+        if (maxWait <= 0) {
+            throw new IllegalArgumentException("maxWait <= 0");
+        }
+        maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    /**
+     * Returns a client that sends its requests through this scheduler. The scheduler goes ahead of the client's other
+     * interceptors so that it sees each call's original request.
+     *
+     * @param client client to derive from
+     * @return scheduled client sharing the connection pool and dispatcher of {@code client}
+     */
+    public OkHttpClient apply(OkHttpClient client) {
+        if (!dispatchers.contains(client.dispatcher())) {
+            dispatchers.add(client.dispatcher());
+        }
+        OkHttpClient.Builder builder = client.newBuilder();
+        builder.interceptors().add(0, this);
+        return builder.build();
+    }
+
+    /**
+     * Enqueues a call, through the scheduler of {@code client} if it has one so that the call waits for its turn
+     * without holding a dispatcher thread.
+     *
+     * @param client   client {@code call} was created by
+     * @param call     call to enqueue
+     * @param callback receives the response
+     */
+    static void enqueue(OkHttpClient client, Call call, Callback callback) {
+        for (Interceptor interceptor : client.interceptors()) {
+            if (interceptor instanceof WatScheduler) {
+                ((WatScheduler) interceptor).enqueue(call, callback);
+                return;
+            }
+        }
+        call.enqueue(callback);
+    }
+
+    private void enqueue(Call call, Callback callback) {
+        Request request = call.request();
+        host(request.url().host()).enqueue(priorityOf(request), call, callback);
+    }
+
+    private static Priority priorityOf(Request request) {
+        return request.tag() instanceof WatSession
+                ? ((WatSession) request.tag()).getPriority() : Priority.INTERACTIVE;
+    }
+
+    // Whether the call of a request waiting in intercept() was cancelled
+    private boolean isCanceled(Request request) {
+        for (Dispatcher dispatcher : dispatchers) {
+            for (Call call : dispatcher.runningCalls()) {
+                if (call.request() == request) {
+                    return call.isCanceled();
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Priority priority = priorityOf(request);
+        Host host = host(request.url().host());
+        // Asynchronous calls already hold a slot when they reach the dispatcher
+        boolean holding = granted.remove(request);
+
+        for (int attempt = 0; ; attempt++) {
+            if (!holding) {
+                host.acquire(request, priority);
+            }
+            holding = false;
+            long start = System.nanoTime();
+            Response response;
+            try {
+                response = chain.proceed(request);
+            }
+            catch (IOException | RuntimeException e) {
+                host.release(0);
+                throw e;
+            }
+            host.onResponse(response, System.nanoTime() - start);
+
+            // Throttled reads are sent again once the host's pause is over
+            if (response.code() == 429 && attempt < MAX_RETRIES && request.method().equals("GET")) {
+                response.close();
+                host.release(response.code());
+                continue;
+            }
+            return response.newBuilder()
+                    .body(new ReleasingBody(response.body(), host, response.code()))
+                    .build();
+        }
+    }
+
+    private Host host(String name) {
+        Host host = hosts.get(name);
+        if (host == null) {
+            synchronized (hosts) {
+                host = hosts.get(name);
+                if (host == null) {
+                    host = new Host();
+                    hosts.put(name, host);
+                }
+            }
+        }
+        return host;
+    }
+
+    /**
+     * @param host host name
+     * @return current concurrency limit of {@code host}
+     */
+    public int getLimit(String host) {
+        Host h = hosts.get(host);
+        return h == null ? initialLimit : h.getLimit();
+    }
+
+    /**
+     * @param host host name
+     * @return requests to {@code host} in flight
+     */
+    public int getInFlight(String host) {
+        Host h = hosts.get(host);
+        return h == null ? 0 : h.getInFlight();
+    }
+
+    /**
+     * @param host host name
+     * @return requests to {@code host} waiting to be sent
+     */
+    public int getWaiting(String host) {
+        Host h = hosts.get(host);
+        return h == null ? 0 : h.getWaiting();
+    }
+
+    /**
+     * Response body that frees its request's slot when closed, so a request counts as in flight until its response
+     * has been read.
+     */
+    private static class ReleasingBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+
+        ReleasingBody(ResponseBody delegate, final Host host, final int code) {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                private boolean released;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        if (!released) {
+                            released = true;
+                            host.release(code);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+    }
+
+    /**
+     * Request waiting for its turn, ordered by priority and then arrival. Asynchronous requests carry their call, which
+     * is enqueued or failed once the request leaves the queue.
+     */
+    private static class Waiter implements Comparable<Waiter> {
+        final int priority;
+        final long sequence;
+        final Call call;
+        final Callback callback;
+        ScheduledFuture<?> timeout;
+        IOException failure;
+
+        Waiter(int priority, long sequence, Call call, Callback callback) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.call = call;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Token bucket, concurrency limit and waiting requests of one host.
+     */
+    private class Host {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final PriorityQueue<Waiter> queue = new PriorityQueue<>();
+        private long sequence;
+
+        private double tokens = burst;
+        private long refilledAt = System.nanoTime();
+        private long pausedUntil = refilledAt;
+
+        private double limit = initialLimit;
+        private int inFlight;
+        private long minLatency = Long.MAX_VALUE;
+        private double smoothedLatency;
+        private long decreasedAt = refilledAt;
+
+        private long dispatchAt;
+        private ScheduledFuture<?> dispatchTask;
+
+        /**
+         * Blocks until the request may be sent, for calls made with {@code execute()} and for retries.
+         */
+        void acquire(Request request, Priority priority) throws IOException {
+            lock.lock();
+            Waiter waiter = new Waiter(priority.ordinal(), sequence++, null, null);
+            queue.add(waiter);
+            try {
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (true) {
+                    long now = System.nanoTime();
+                    long wait = waitNanos(waiter, now);
+                    if (wait == 0) {
+                        break;
+                    }
+                    if (now - deadline >= 0) {
+                        throw new InterruptedIOException("Timed out waiting for the scheduler");
+                    }
+                    if (isCanceled(request)) {
+                        throw new InterruptedIOException("Canceled");
+                    }
+                    long poll = Math.min(deadline - now, CANCEL_CHECK_NANOS);
+                    changed.awaitNanos(wait > 0 ? Math.min(wait, poll) : poll);
+                }
+                take(waiter);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the scheduler");
+            }
+            finally {
+                // Gone from the queue unless it failed; the next waiter may be able to go too
+                queue.remove(waiter);
+                List<Waiter> ready = dispatch();
+                lock.unlock();
+                start(ready);
+            }
+        }
+
+        /**
+         * Queues an asynchronous call, which is handed to the dispatcher once it may be sent.
+         */
+        void enqueue(Priority priority, Call call, Callback callback) {
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                final Waiter waiter = new Waiter(priority.ordinal(), sequence++, call, callback);
+                queue.add(waiter);
+                waiter.timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeOut(waiter);
+                    }
+                }, maxWaitNanos, TimeUnit.NANOSECONDS);
+                ready = dispatch();
+            }
+            finally {
+                lock.unlock();
+            }
+            start(ready);
+        }
+
+        private void timeOut(Waiter waiter) {
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                if (!queue.remove(waiter)) {
+                    return;
+                }
+                waiter.failure = new InterruptedIOException("Timed out waiting for the scheduler");
+                ready = dispatch();
+                ready.add(waiter);
+            }
+            finally {
+                lock.unlock();
+            }
+            start(ready);
+        }
+
+        // Runs when tokens have refilled or a pause has ended
+        private void dispatchLater() {
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                dispatchTask = null;
+                ready = dispatch();
+            }
+            finally {
+                lock.unlock();
+            }
+            start(ready);
+        }
+
+        /**
+         * Lets through the asynchronous calls at the head of the queue that may be sent and wakes the blocked
+         * requests. Called with the lock held after every change; the returned calls are started after unlocking.
+         *
+         * @return calls to enqueue or fail
+         */
+        private List<Waiter> dispatch() {
+            List<Waiter> ready = new ArrayList<>();
+            Waiter head;
+            while ((head = queue.peek()) != null && head.call != null) {
+                if (head.call.isCanceled()) {
+                    queue.poll();
+                    head.failure = new IOException("Canceled");
+                    ready.add(head);
+                    continue;
+                }
+                long now = System.nanoTime();
+                long wait = waitNanos(head, now);
+                if (wait != 0) {
+                    if (wait > 0) {
+                        dispatchAfter(now, wait);
+                    }
+                    break;
+                }
+                take(head);
+                granted.add(head.call.request());
+                ready.add(head);
+            }
+            changed.signalAll();
+            return ready;
+        }
+
+        private void dispatchAfter(long now, long wait) {
+            if (dispatchTask != null && dispatchAt - (now + wait) <= 0) {
+                return;
+            }
+            if (dispatchTask != null) {
+                dispatchTask.cancel(false);
+            }
+            dispatchAt = now + wait;
+            dispatchTask = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchLater();
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+
+        // Enqueues the calls let through and fails the others, outside the lock
+        private void start(List<Waiter> ready) {
+            for (Waiter waiter : ready) {
+                if (waiter.timeout != null) {
+                    waiter.timeout.cancel(false);
+                }
+                if (waiter.failure != null) {
+                    waiter.callback.onFailure(waiter.call, waiter.failure);
+                    continue;
+                }
+                try {
+                    waiter.call.enqueue(waiter.callback);
+                }
+                catch (RuntimeException e) {
+                    // Never reached the interceptor, so free the slot here
+                    granted.remove(waiter.call.request());
+                    release(0);
+                    waiter.callback.onFailure(waiter.call, new IOException(e));
+                }
+            }
+        }
+
+        /**
+         * @return 0 if {@code waiter} may go now, the time until it may go if it only waits for tokens or a pause, or
+         * -1 if it waits for its turn or a slot
+         */
+        private long waitNanos(Waiter waiter, long now) {
+            refill(now);
+            if (queue.peek() != waiter || inFlight >= (int) limit) {
+                return -1;
+            }
+            long wait = pausedUntil - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (permitsPerSecond <= 0 || tokens >= 1) {
+                return 0;
+            }
+            return (long) ((1 - tokens) / permitsPerSecond * 1e9) + 1;
+        }
+
+        // Takes a slot and a token for the waiter at the head of the queue
+        private void take(Waiter waiter) {
+            queue.remove(waiter);
+            if (permitsPerSecond > 0) {
+                tokens -= 1;
+            }
+            inFlight++;
+        }
+
+        // Records the time to the response headers and any pause the server asks for
+        void onResponse(Response response, long latency) {
+            lock.lock();
+            try {
+                int code = response.code();
+                if (code == 429 || code == 503) {
+                    pause(response, System.nanoTime());
+                }
+                if (code < 500 && code != 429) {
+                    // Let the baseline rise slowly so a lasting change in the server becomes the new normal
+                    minLatency = minLatency == Long.MAX_VALUE
+                            ? latency : Math.min(latency, minLatency + (minLatency >> 6));
+                    smoothedLatency = smoothedLatency == 0 ? latency : smoothedLatency * 0.9 + latency * 0.1;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Frees the slot of a request once its response is closed and adjusts the concurrency limit.
+         *
+         * @param code response code, 0 if the request failed
+         */
+        void release(int code) {
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                boolean saturated = inFlight >= (int) limit;
+                inFlight--;
+
+                boolean congested = code == 0 || code == 429 || code >= 500
+                        || smoothedLatency > minLatency * latencyTolerance;
+                if (congested) {
+                    // Back off once per round trip, not once per response of the same burst
+                    if (now - decreasedAt >= smoothedLatency) {
+                        limit = Math.max(minLimit, limit / 2);
+                        decreasedAt = now;
+                    }
+                }
+                else if (saturated) {
+                    // About one more per round trip's worth of responses
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                ready = dispatch();
+            }
+            finally {
+                lock.unlock();
+            }
+            start(ready);
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * permitsPerSecond);
+            refilledAt = now;
+        }
+
+        private void pause(Response response, long now) {
+            String retryAfter = response.header("Retry-After");
+            if (retryAfter == null) {
+                return;
+            }
+            try {
+                long pause = Math.min(TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.trim())), MAX_PAUSE_NANOS);
+                if (now + pause - pausedUntil > 0) {
+                    pausedUntil = now + pause;
+                }
+            }
+            catch (NumberFormatException e) {
+                // HTTP dates are not used by the WatCard site
+            }
+        }
+
+        int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        int getWaiting() {
+            lock.lock();
+            try {
+                return queue.size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
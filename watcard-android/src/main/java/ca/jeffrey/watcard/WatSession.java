@@ -2,14 +2,25 @@ package ca.jeffrey.watcard;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.jsoup.select.Elements;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Cookie;
+import okhttp3.Dispatcher;
 import okhttp3.HttpUrl;
 import okhttp3.JavaNetCookieJar;
 import okhttp3.OkHttpClient;
@@ -19,49 +30,406 @@ import okhttp3.Response;
 
 public class WatSession {
 
+    /**
+     * Address of the WatCard site, used unless another base URL is given.
+     */
+    public static final String DEFAULT_BASE_URL = "https://watcard.uwaterloo.ca";
+
+    static final String LOGIN_PATH = "/OneWeb/Account/LogOn";
+    private static final String PROBE_PATH = "/OneWeb/Account/Personal";
+
+    // Scheme, host and port every request of this session goes to, without a trailing slash
+    private String baseUrl;
+
     private HashMap<HttpUrl, List<Cookie>> cookieStore;
     CookieManager cookieManager;
+    // Per-session view of the shared client, carrying this session's cookies
+    private OkHttpClient client;
 
-    private String verificationToken;
+    private volatile WatMetrics metrics = WatMetrics.NONE;
+    private volatile WatScheduler.Priority priority = WatScheduler.Priority.INTERACTIVE;
 
+    private volatile String verificationToken;
+    // Completed once the verification token has been fetched
+    private volatile WatFuture<String> tokenFuture;
+    // Time the session was started, in milliseconds since the epoch
+    private long createdAt;
+
+    /**
+     * Creates a session on top of {@link WatHttpClient#getSharedClient()}. The constructor does not block: the
+     * verification token is fetched in the background and only waited for when it is first needed.
+     */
     public WatSession() {
-        initializeSession();
+        this(WatHttpClient.getSharedClient());
+    }
+
+    /**
+     * Creates a session on top of the given client. The session reuses its connection pool and dispatcher but keeps
+     * its own cookies. The verification token is fetched in the background.
+     *
+     * @param baseClient client to derive the session client from
+     */
+    public WatSession(OkHttpClient baseClient) {
+        this(baseClient, DEFAULT_BASE_URL);
+    }
+
+    /**
+     * Creates a session against another server than the WatCard site, such as a local stand-in for testing. The
+     * server must serve the same paths as the WatCard site, e.g. {@code /OneWeb/Account/LogOn}.
+     *
+     * @param baseClient client to derive the session client from
+     * @param baseUrl    scheme, host and optional port of the server, e.g. {@code "http://localhost:8080"}
+     */
+    public WatSession(OkHttpClient baseClient, String baseUrl) {
+        this.baseUrl = normalizeBaseUrl(baseUrl);
+        initializeSession(baseClient);
+    }
+
+    // Restores a saved session without any network traffic
+    private WatSession(OkHttpClient baseClient, WatSessionFile saved) {
+        baseUrl = normalizeBaseUrl(saved.baseUrl);
+        createClient(baseClient);
+        verificationToken = saved.verificationToken;
+        createdAt = saved.createdAt;
+        tokenFuture = new WatFuture<>(WatFuture.DIRECT_EXECUTOR);
+        tokenFuture.complete(verificationToken);
+
+        long age = System.currentTimeMillis() - createdAt;
+        CookieStore store = cookieManager.getCookieStore();
+        for (WatSessionFile.StoredCookie stored : saved.cookies) {
+            HttpCookie cookie = stored.cookie;
+            // Max age is counted from the session's creation, which is never later than the cookie's
+            if (cookie.getMaxAge() >= 0) {
+                long remaining = cookie.getMaxAge() - age / 1000;
+                if (remaining <= 0) {
+                    continue;
+                }
+                cookie.setMaxAge(remaining);
+            }
+            store.add(stored.uri, cookie);
+        }
     }
 
-    private void initializeSession() {
-        final String LOGIN_URL = "https://watcard.uwaterloo.ca/OneWeb/Account/LogOn";
+    private static String normalizeBaseUrl(String baseUrl) {
+        if (baseUrl == null || HttpUrl.parse(baseUrl) == null) {
+            throw new IllegalArgumentException("Invalid base URL: " + baseUrl);
+        }
+        return baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
 
+    private void createClient(OkHttpClient baseClient) {
         cookieStore = new HashMap<>();
         cookieManager = new CookieManager();
         cookieManager.setCookiePolicy(CookiePolicy.ACCEPT_ALL);
-        OkHttpClient client = new OkHttpClient.Builder()
+        WatMetricsInterceptor metricsInterceptor = new WatMetricsInterceptor(this, baseClient.dns());
+        client = baseClient.newBuilder()
                 .cookieJar(new JavaNetCookieJar(cookieManager))
+                .addInterceptor(metricsInterceptor)
+                .addNetworkInterceptor(metricsInterceptor.networkInterceptor())
+                .dns(metricsInterceptor.dns())
                 .build();
+    }
 
+    private void initializeSession(OkHttpClient baseClient) {
+        createClient(baseClient);
+        fetchToken();
+    }
+
+    /**
+     * Starts over with a new server session on the same client: drops the cookies of the expired one and fetches a
+     * new verification token on the calling thread, as the dispatcher may be busy with the requests that found the
+     * session expired. {@link WatAccount#login()} has to be called again afterwards.
+     */
+    void reset() {
+        verificationToken = null;
+        cookieManager.getCookieStore().removeAll();
+        createdAt = System.currentTimeMillis();
+
+        WatFuture<String> future = new WatFuture<>(WatFuture.DIRECT_EXECUTOR);
+        tokenFuture = future;
         try {
-            Request request = new Request.Builder().url(LOGIN_URL).build();
-            Response response = client.newCall(request).execute();
-            String htmlResponse = response.body().string();
+            Response response = client.newCall(newRequest(url(LOGIN_PATH)).build()).execute();
+            try {
+                future.complete(parseToken(response));
+            }
+            finally {
+                response.close();
+            }
+        }
+        catch (IOException ie) {
+            future.fail(ie);
+        }
+    }
+
+    // Starts fetching the verification token in the background; this also resolves DNS and opens the TLS connection
+    // that login() and later requests reuse
+    private void fetchToken() {
+        createdAt = System.currentTimeMillis();
+
+        final WatFuture<String> future = new WatFuture<>(WatFuture.DIRECT_EXECUTOR);
+        tokenFuture = future;
+        Call call = client.newCall(newRequest(url(LOGIN_PATH)).build());
+        future.addCall(call);
+        WatScheduler.enqueue(client, call, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.fail(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    future.complete(parseToken(response));
+                }
+                catch (Exception e) {
+                    future.fail(e);
+                }
+                finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    // Reads the verification token from the login page and stores it
+    private String parseToken(Response response) throws IOException {
+        Document doc = Jsoup.parse(response.body().string());
+        Elements inputs = doc.select("input[name=__RequestVerificationToken]");
+        if (inputs.isEmpty()) {
+            throw new IOException("No verification token on login page");
+        }
+        String requestVerificationToken = inputs.get(0).val();
+        setVerificationToken(requestVerificationToken);
+        return requestVerificationToken;
+    }
+
+    /**
+     * Restores a session saved with {@link #save(File, char[])} on top of {@link WatHttpClient#getSharedClient()}.
+     *
+     * @param file       session file
+     * @param passphrase passphrase the session was saved with
+     * @return restored session, or null if there is no saved session or it cannot be read
+     */
+    public static WatSession restore(File file, char[] passphrase) {
+        return restore(file, passphrase, WatHttpClient.getSharedClient());
+    }
 
-            Document doc = Jsoup.parse(htmlResponse);
+    /**
+     * Restores a session saved with {@link #save(File, char[])}. No request is made; use {@link #isValid()} to check
+     * whether the server still accepts it.
+     *
+     * @param file       session file
+     * @param passphrase passphrase the session was saved with
+     * @param baseClient client to derive the session client from
+     * @return restored session, or null if there is no saved session or it cannot be read
+     */
+    public static WatSession restore(File file, char[] passphrase, OkHttpClient baseClient) {
+        if (!file.exists()) {
+            return null;
+        }
 
-            String requestVerificationToken = doc.select("input[name=__RequestVerificationToken]").get(0).val();
-            setVerificationToken(requestVerificationToken);
+        try {
+            return new WatSession(baseClient, WatSessionFile.read(file, passphrase));
         }
         catch (IOException ie) {
             ie.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Saves the verification token, creation time and cookies of this session to an encrypted file.
+     *
+     * @param file       session file, replaced if it exists
+     * @param passphrase passphrase to encrypt the file with
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file, char[] passphrase) throws IOException {
+        if (getVerificationToken() == null) {
+            throw new IllegalStateException("Session was not initialized");
         }
+
+        WatSessionFile saved = new WatSessionFile();
+        saved.verificationToken = verificationToken;
+        saved.createdAt = createdAt;
+        saved.baseUrl = baseUrl;
+
+        CookieStore store = cookieManager.getCookieStore();
+        Set<HttpCookie> seen = new LinkedHashSet<>();
+        for (URI uri : store.getURIs()) {
+            for (HttpCookie cookie : store.get(uri)) {
+                if (!cookie.hasExpired() && seen.add(cookie)) {
+                    saved.cookies.add(new WatSessionFile.StoredCookie(uri, cookie));
+                }
+            }
+        }
+        saved.write(file, passphrase);
     }
 
+    /**
+     * Checks whether the server still considers this session logged in, with a single request that is not
+     * redirected and whose body is not read.
+     *
+     * @return true if the session is logged in
+     */
+    public boolean isValid() {
+        OkHttpClient probe = client.newBuilder()
+                .followRedirects(false)
+                .followSslRedirects(false)
+                .build();
+
+        try {
+            Response response = probe.newCall(newRequest(url(PROBE_PATH)).build()).execute();
+            response.close();
+            // An expired session is redirected to the login page
+            return response.code() == 200;
+        }
+        catch (IOException ie) {
+            ie.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether a response is the login page, which the server redirects to once the session has expired.
+     *
+     * @param response response of a request made through this session
+     * @return true if the response is the login page
+     */
+    static boolean isLoginPage(Response response) {
+        return response.request().url().encodedPath().equalsIgnoreCase(LOGIN_PATH);
+    }
+
+    /**
+     * @return scheme, host and port of the server this session talks to, without a trailing slash
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Resolves a path on this session's server.
+     *
+     * @param path absolute path, e.g. {@code "/OneWeb/Account/LogOn"}
+     * @return full URL
+     */
+    String url(String path) {
+        return baseUrl + path;
+    }
+
+    /**
+     * Starts a request tagged with this session, so that it can be cancelled with {@link #cancel()}.
+     *
+     * @param url request URL
+     * @return request builder
+     */
+    Request.Builder newRequest(String url) {
+        return new Request.Builder().url(url).tag(this);
+    }
+
+    /**
+     * Cancels every queued or running request made through this session.
+     */
+    public void cancel() {
+        Dispatcher dispatcher = client.dispatcher();
+        for (Call call : dispatcher.queuedCalls()) {
+            if (call.request().tag() == this) {
+                call.cancel();
+            }
+        }
+        for (Call call : dispatcher.runningCalls()) {
+            if (call.request().tag() == this) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * Returns the verification token, waiting for it to be fetched if needed.
+     *
+     * @return verification token, or null if it could not be fetched
+     */
     public String getVerificationToken() {
+        if (verificationToken == null) {
+            try {
+                tokenFuture.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
         return verificationToken;
     }
 
+    /**
+     * Returns a future completed with the verification token, to wait for the session without blocking.
+     *
+     * @return future completed once the session is initialized
+     */
+    public WatFuture<String> getVerificationTokenAsync() {
+        return tokenFuture;
+    }
+
+    /**
+     * @return true once the verification token has been fetched or fetching it failed
+     */
+    public boolean isInitialized() {
+        return tokenFuture.isDone();
+    }
+
     public void setVerificationToken(String verification_token) {
         this.verificationToken = verification_token;
     }
 
+    /**
+     * @return time the session was started, in milliseconds since the epoch
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public WatMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where the timings and counts of this session's requests are reported. Requests already in flight may
+     * still report to the previous listener.
+     *
+     * @param metrics metrics listener, {@link WatMetrics#NONE} to stop reporting
+     */
+    public void setMetrics(WatMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics == null");
+        }
+        this.metrics = metrics;
+    }
+
+    public WatScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of this session's requests on a client with a {@link WatScheduler}. Sessions used for
+     * background syncs should be {@code BACKGROUND} so requests the user waits for go first.
+     *
+     * @param priority request priority, {@code INTERACTIVE} by default
+     */
+    public void setPriority(WatScheduler.Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("priority == null");
+        }
+        this.priority = priority;
+    }
+
     public CookieManager getCookieManager() {
         return cookieManager;
     }
+
+    public OkHttpClient getClient() {
+        return client;
+    }
 }
@@ -0,0 +1,16 @@
+package ca.jeffrey.watcard;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server answers a request with the login page because the session has expired, and logging in
+ * again was disabled or did not succeed.
+ */
+public class WatSessionExpiredException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public WatSessionExpiredException(String message) {
+        super(message);
+    }
+}
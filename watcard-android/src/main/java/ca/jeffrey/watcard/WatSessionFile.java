@@ -0,0 +1,231 @@
+package ca.jeffrey.watcard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted file holding a saved {@code WatSession}: its base URL, verification token, creation time and cookies.
+ * <p>
+ * The contents are encrypted with AES-CBC and authenticated with HMAC-SHA256 over everything before the MAC, using
+ * keys derived from a passphrase with PBKDF2. A file that was tampered with or written with another passphrase is
+ * rejected as a whole.
+ */
+final class WatSessionFile {
+
+    private static final int MAGIC = 0x57415453; // "WATS"
+    private static final int VERSION = 2;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int ITERATIONS = 4096;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Cookie along with the URI it was stored for.
+     */
+    static class StoredCookie {
+        final URI uri;
+        final HttpCookie cookie;
+
+        StoredCookie(URI uri, HttpCookie cookie) {
+            this.uri = uri;
+            this.cookie = cookie;
+        }
+    }
+
+    // Decrypted contents
+    String baseUrl;
+    String verificationToken;
+    long createdAt;
+    final List<StoredCookie> cookies = new ArrayList<>();
+
+    /**
+     * Encrypts and writes the contents to {@code file}. The file is replaced atomically, so a crash never leaves a
+     * partially written session behind.
+     *
+     * @param file       destination
+     * @param passphrase passphrase to derive the keys from
+     * @throws IOException if the file cannot be written
+     */
+    void write(File file, char[] passphrase) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(plain);
+        data.writeUTF(baseUrl);
+        data.writeUTF(verificationToken);
+        data.writeLong(createdAt);
+        data.writeInt(cookies.size());
+        for (StoredCookie stored : cookies) {
+            HttpCookie cookie = stored.cookie;
+            data.writeUTF(stored.uri.toString());
+            data.writeUTF(cookie.getName());
+            data.writeUTF(cookie.getValue());
+            writeNullableUTF(data, cookie.getDomain());
+            writeNullableUTF(data, cookie.getPath());
+            data.writeLong(cookie.getMaxAge());
+            data.writeBoolean(cookie.getSecure());
+            data.writeInt(cookie.getVersion());
+        }
+        data.flush();
+
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(salt);
+        RANDOM.nextBytes(iv);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            byte[][] keys = deriveKeys(passphrase, salt);
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys[0], "AES"), new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(salt);
+            out.write(iv);
+            out.writeInt(encrypted.length);
+            out.write(encrypted);
+            out.flush();
+            out.write(mac(keys[1], bytes.toByteArray()));
+            out.flush();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt session", e);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            stream.write(bytes.toByteArray());
+            stream.getFD().sync();
+        }
+        finally {
+            stream.close();
+        }
+        if (!temp.renameTo(file)) {
+            // Some platforms do not replace an existing file on rename
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads and decrypts a session file.
+     *
+     * @param file       file written by {@link #write(File, char[])}
+     * @param passphrase passphrase the file was written with
+     * @return contents of the file
+     * @throws IOException if the file cannot be read, is not a session file, or fails authentication
+     */
+    static WatSessionFile read(File file, char[] passphrase) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        }
+        finally {
+            in.close();
+        }
+
+        try {
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException("Not a session file: " + file);
+            }
+            byte[] salt = new byte[SALT_LENGTH];
+            byte[] iv = new byte[IV_LENGTH];
+            header.readFully(salt);
+            header.readFully(iv);
+            int length = header.readInt();
+            int macOffset = 8 + SALT_LENGTH + IV_LENGTH + 4 + length;
+            if (length < 0 || macOffset + MAC_LENGTH != bytes.length) {
+                throw new IOException("Corrupt session file: " + file);
+            }
+
+            byte[][] keys = deriveKeys(passphrase, salt);
+            byte[] expected = mac(keys[1], Arrays.copyOf(bytes, macOffset));
+            if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(bytes, macOffset, bytes.length))) {
+                throw new IOException("Session file failed authentication: " + file);
+            }
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys[0], "AES"), new IvParameterSpec(iv));
+            byte[] plain = cipher.doFinal(bytes, macOffset - length, length);
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(plain));
+            WatSessionFile contents = new WatSessionFile();
+            contents.baseUrl = data.readUTF();
+            contents.verificationToken = data.readUTF();
+            contents.createdAt = data.readLong();
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                URI uri = URI.create(data.readUTF());
+                HttpCookie cookie = new HttpCookie(data.readUTF(), data.readUTF());
+                cookie.setDomain(readNullableUTF(data));
+                cookie.setPath(readNullableUTF(data));
+                cookie.setMaxAge(data.readLong());
+                cookie.setSecure(data.readBoolean());
+                cookie.setVersion(data.readInt());
+                contents.cookies.add(new StoredCookie(uri, cookie));
+            }
+            return contents;
+        }
+        catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Could not decrypt session file: " + file, e);
+        }
+    }
+
+    // Derives an AES key and a MAC key from the passphrase
+    private static byte[][] deriveKeys(char[] passphrase, byte[] salt) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, ITERATIONS, 256);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+            return new byte[][]{Arrays.copyOfRange(key, 0, 16), Arrays.copyOfRange(key, 16, 32)};
+        }
+        finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] mac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
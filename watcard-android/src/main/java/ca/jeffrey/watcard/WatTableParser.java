@@ -0,0 +1,397 @@
+package ca.jeffrey.watcard;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Streaming reader for the {@code ow-table-responsive} tables served by the WatCard site. Instead of building a DOM,
+ * it scans the response tag by tag and hands each body row to a {@code RowHandler}, or back from {@link #nextRow()},
+ * as soon as its {@code <tr>} closes, so memory use does not grow with the size of the table.
+ * <p>
+ * Cell text is whitespace-normalized and entity-decoded the same way Jsoup's {@code Element.text()} does for the
+ * markup the site produces.
+ */
+final class WatTableParser {
+
+    // Class name identifying the data table on every WatCard page
+    static final String TABLE_CLASS = "ow-table-responsive";
+
+    /**
+     * Receives table rows as they are parsed.
+     */
+    interface RowHandler {
+        /**
+         * Called once per body row. The list is reused between rows and must not be kept.
+         *
+         * @param cells text of each {@code <td>} in the row
+         * @return true to continue parsing, false to stop
+         */
+        boolean onRow(List<String> cells);
+    }
+
+    // Tag codes
+    private static final int TAG_OTHER = 0;
+    private static final int TAG_TABLE = 1;
+    private static final int TAG_THEAD = 2;
+    private static final int TAG_TBODY = 3;
+    private static final int TAG_TR = 4;
+    private static final int TAG_TD = 5;
+    private static final int TAG_SCRIPT = 6;
+    private static final int CLOSING = 0x100;
+
+    private static final byte[][] TAG_NAMES = {
+            null, "table".getBytes(), "thead".getBytes(), "tbody".getBytes(), "tr".getBytes(), "td".getBytes(),
+            "script".getBytes()
+    };
+
+    private static final ByteString COMMENT_START = ByteString.encodeUtf8("<!--");
+    private static final ByteString COMMENT_END = ByteString.encodeUtf8("-->");
+    private static final ByteString SCRIPT_END = ByteString.encodeUtf8("</script");
+
+    // Parser states
+    private static final int SEEK_TABLE = 0;
+    private static final int IN_TABLE = 1;
+    private static final int IN_HEAD = 2;
+    private static final int IN_BODY = 3;
+
+    private final BufferedSource source;
+    private final List<String> cells = new ArrayList<>();
+    // Text of the cells of the current row, in builders reused from row to row
+    private final List<StringBuilder> buffers = new ArrayList<>();
+    private final Cells row = new Cells();
+    private StringBuilder cell;
+    private boolean inCell;
+    private boolean inRow;
+    private int state = SEEK_TABLE;
+    private boolean finished;
+    // Tag that ended the row returned last, still to be handled
+    private int pendingTag = -1;
+
+    /**
+     * Creates a parser that reads rows on demand with {@link #nextRow()}.
+     *
+     * @param source response body
+     */
+    WatTableParser(BufferedSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Reads the first {@code ow-table-responsive} table from {@code source} and passes each body row to
+     * {@code handler}. Returns when the table body ends, the handler asks to stop, or the source is exhausted.
+     *
+     * @param source  response body
+     * @param handler row callback
+     * @throws IOException if reading the source fails
+     */
+    static void parse(BufferedSource source, RowHandler handler) throws IOException {
+        WatTableParser parser = new WatTableParser(source);
+        List<String> row;
+        while ((row = parser.nextRow()) != null) {
+            if (!handler.onRow(row)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads up to the end of the next body row. Only as much of the source as needed is consumed.
+     *
+     * @return text of each {@code <td>} in the row, reused by the next call, or null once the table body ends or the
+     * source is exhausted
+     * @throws IOException if reading the source fails
+     */
+    List<String> nextRow() throws IOException {
+        if (nextCells() == null) {
+            return null;
+        }
+        cells.clear();
+        for (int i = 0; i < row.size; i++) {
+            cells.add(buffers.get(i).toString());
+        }
+        return cells;
+    }
+
+    /**
+     * Reads up to the end of the next body row like {@link #nextRow()}, without creating a string per cell. Lets
+     * callers look at a row before paying for its strings.
+     *
+     * @return text of each {@code <td>} in the row, reused along with its builders by the next call, or null once the
+     * table body ends or the source is exhausted
+     * @throws IOException if reading the source fails
+     */
+    List<? extends CharSequence> nextCells() throws IOException {
+        if (pendingTag != -1) {
+            int tag = pendingTag;
+            pendingTag = -1;
+            afterRow(tag);
+        }
+
+        while (!finished) {
+            long lt = source.indexOf((byte) '<');
+            if (lt == -1) {
+                finished = true;
+                break;
+            }
+
+            // Text before the tag only matters inside a cell
+            if (lt > 0) {
+                if (inCell) {
+                    appendText(cell, source.readUtf8(lt));
+                }
+                else {
+                    source.skip(lt);
+                }
+            }
+
+            if (source.rangeEquals(0, COMMENT_START)) {
+                long end = source.indexOf(COMMENT_END);
+                if (end == -1) {
+                    finished = true;
+                    break;
+                }
+                source.skip(end + COMMENT_END.size());
+                continue;
+            }
+
+            long gt = source.indexOf((byte) '>');
+            if (gt == -1) {
+                finished = true;
+                break;
+            }
+
+            int tag = classify(source.buffer(), gt);
+
+            if (tag == TAG_SCRIPT) {
+                // Script bodies may contain '<' and '>' that are not tags
+                long end = source.indexOf(SCRIPT_END);
+                if (end == -1) {
+                    finished = true;
+                    break;
+                }
+                source.skip(end);
+                continue;
+            }
+
+            if (state == SEEK_TABLE) {
+                if (tag == TAG_TABLE && source.readUtf8(gt + 1).contains(TABLE_CLASS)) {
+                    state = IN_TABLE;
+                }
+                else {
+                    source.skip(gt + 1);
+                }
+                continue;
+            }
+            source.skip(gt + 1);
+
+            switch (state) {
+                case IN_TABLE:
+                    if (tag == TAG_THEAD) {
+                        state = IN_HEAD;
+                    }
+                    else if (tag == TAG_TBODY) {
+                        state = IN_BODY;
+                    }
+                    else if (tag == TAG_TR) {
+                        // Body without an explicit <tbody>
+                        state = IN_BODY;
+                        inRow = true;
+                        row.size = 0;
+                    }
+                    else if (tag == (TAG_TABLE | CLOSING)) {
+                        finished = true;
+                    }
+                    break;
+                case IN_HEAD:
+                    if (tag == (TAG_THEAD | CLOSING)) {
+                        state = IN_TABLE;
+                    }
+                    else if (tag == TAG_TBODY) {
+                        state = IN_BODY;
+                    }
+                    break;
+                case IN_BODY:
+                    // Cells and rows may be closed implicitly by the next one
+                    if (inCell && (tag == TAG_TD || tag == (TAG_TD | CLOSING) || tag == TAG_TR
+                            || tag == (TAG_TR | CLOSING) || tag == (TAG_TBODY | CLOSING)
+                            || tag == (TAG_TABLE | CLOSING))) {
+                        trimTrailing(cell);
+                        row.size++;
+                        inCell = false;
+                    }
+                    if (inRow && (tag == TAG_TR || tag == (TAG_TR | CLOSING) || tag == (TAG_TBODY | CLOSING)
+                            || tag == (TAG_TABLE | CLOSING))) {
+                        inRow = false;
+                        pendingTag = tag;
+                        return row;
+                    }
+                    afterRow(tag);
+                    break;
+            }
+        }
+        return null;
+    }
+
+    // Handles a tag inside the body once any row it closed has been returned
+    private void afterRow(int tag) {
+        if (tag == TAG_TR) {
+            inRow = true;
+            row.size = 0;
+        }
+        else if (tag == TAG_TD && inRow) {
+            inCell = true;
+            if (row.size == buffers.size()) {
+                buffers.add(new StringBuilder());
+            }
+            cell = buffers.get(row.size);
+            cell.setLength(0);
+        }
+        else if (tag == (TAG_TBODY | CLOSING) || tag == (TAG_TABLE | CLOSING)) {
+            finished = true;
+        }
+    }
+
+    /**
+     * Identifies the tag occupying bytes {@code [0, gt]} of {@code buffer} without consuming or copying it.
+     */
+    private static int classify(Buffer buffer, long gt) {
+        long i = 1;
+        int closing = 0;
+        if (i < gt && buffer.getByte(i) == '/') {
+            closing = CLOSING;
+            i++;
+        }
+
+        for (int tag = TAG_TABLE; tag < TAG_NAMES.length; tag++) {
+            byte[] name = TAG_NAMES[tag];
+            if (i + name.length > gt) {
+                continue;
+            }
+            boolean match = true;
+            for (int j = 0; j < name.length; j++) {
+                // ASCII lowercase
+                if ((buffer.getByte(i + j) | 0x20) != name[j]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                byte next = buffer.getByte(i + name.length);
+                if (next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\n' || next == '\r') {
+                    return tag | closing;
+                }
+            }
+        }
+        return TAG_OTHER;
+    }
+
+    /**
+     * Appends raw text to a cell, collapsing whitespace and decoding character references.
+     */
+    private static void appendText(StringBuilder cell, String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (c == '&') {
+                int semi = text.indexOf(';', i);
+                if (semi != -1 && semi - i <= 10) {
+                    int decoded = decodeEntity(text, i + 1, semi);
+                    if (decoded > ' ') {
+                        cell.appendCodePoint(decoded);
+                        i = semi;
+                        continue;
+                    }
+                    else if (decoded != -1) {
+                        c = ' ';
+                        i = semi;
+                    }
+                }
+            }
+
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                int last = cell.length() - 1;
+                if (last >= 0 && cell.charAt(last) != ' ') {
+                    cell.append(' ');
+                }
+            }
+            else {
+                cell.append(c);
+            }
+        }
+    }
+
+    /**
+     * Decodes the character reference between {@code start} and {@code end} (exclusive of {@code &} and {@code ;}).
+     *
+     * @return decoded character, or -1 if the reference is not recognized
+     */
+    private static int decodeEntity(String text, int start, int end) {
+        if (start < end && text.charAt(start) == '#') {
+            try {
+                int codePoint;
+                if (start + 1 < end && (text.charAt(start + 1) == 'x' || text.charAt(start + 1) == 'X')) {
+                    codePoint = Integer.parseInt(text.substring(start + 2, end), 16);
+                }
+                else {
+                    codePoint = Integer.parseInt(text.substring(start + 1, end));
+                }
+                return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+            }
+            catch (NumberFormatException nfe) {
+                return -1;
+            }
+        }
+
+        String name = text.substring(start, end);
+        switch (name) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return ' ';
+            default:
+                return -1;
+        }
+    }
+
+    private static void trimTrailing(StringBuilder cell) {
+        int length = cell.length();
+        if (length > 0 && cell.charAt(length - 1) == ' ') {
+            cell.setLength(length - 1);
+        }
+    }
+
+    /**
+     * Cells of the current row, a view of the first {@code size} builders.
+     */
+    private class Cells extends AbstractList<StringBuilder> {
+        int size;
+
+        @Override
+        public StringBuilder get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return buffers.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
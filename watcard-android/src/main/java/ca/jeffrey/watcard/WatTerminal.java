@@ -0,0 +1,190 @@
+package ca.jeffrey.watcard;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Interned transaction terminal. Every distinct terminal string seen by the library maps to a single
+ * {@code WatTerminal} with a small, stable id and a precomputed clean name, so terminals can be compared, grouped and
+ * displayed without any string work per transaction.
+ * <p>
+ * Ids are assigned in order of first appearance and are only stable within a process.
+ */
+public final class WatTerminal {
+
+    private static final String PREFIX = "WAT-FS-";
+    private static final String SEPARATOR = " : ";
+
+    // Dictionary shared by the whole process; new entries are rare, so lookups never lock
+    private static final Map<String, WatTerminal> BY_NAME = new ConcurrentHashMap<>();
+    private static final List<WatTerminal> BY_ID = new CopyOnWriteArrayList<>();
+    private static final List<String> CLEAN_NAMES = new CopyOnWriteArrayList<>();
+    // Guarded by BY_ID
+    private static final Map<String, Integer> CLEAN_IDS = new HashMap<>();
+
+    private final int id;
+    private final int cleanId;
+    private final String name;
+    private final String cleanName;
+
+    private WatTerminal(int id, int cleanId, String name, String cleanName) {
+        this.id = id;
+        this.cleanId = cleanId;
+        this.name = name;
+        this.cleanName = cleanName;
+    }
+
+    /**
+     * Returns the interned terminal for a terminal string, adding it to the dictionary if it is new.
+     *
+     * @param name terminal as shown on the site, e.g. "WAT-FS-V1 : REV"
+     * @return interned terminal
+     */
+    public static WatTerminal of(String name) {
+        WatTerminal terminal = BY_NAME.get(name);
+        if (terminal != null) {
+            return terminal;
+        }
+
+        synchronized (BY_ID) {
+            terminal = BY_NAME.get(name);
+            if (terminal == null) {
+                String cleanName = clean(name);
+                Integer cleanId = CLEAN_IDS.get(cleanName);
+                if (cleanId == null) {
+                    cleanId = CLEAN_NAMES.size();
+                    CLEAN_NAMES.add(cleanName);
+                    CLEAN_IDS.put(cleanName, cleanId);
+                }
+
+                terminal = new WatTerminal(BY_ID.size(), cleanId, name, cleanName);
+                BY_ID.add(terminal);
+                BY_NAME.put(name, terminal);
+            }
+            return terminal;
+        }
+    }
+
+    /**
+     * Returns the terminal with the given id.
+     *
+     * @param id terminal id
+     * @return interned terminal
+     */
+    public static WatTerminal get(int id) {
+        return BY_ID.get(id);
+    }
+
+    /**
+     * Returns the clean name with the given clean id.
+     *
+     * @param cleanId clean name id
+     * @return clean name
+     */
+    public static String getCleanName(int cleanId) {
+        return CLEAN_NAMES.get(cleanId);
+    }
+
+    /**
+     * @return number of terminals in the dictionary
+     */
+    public static int count() {
+        return BY_ID.size();
+    }
+
+    /**
+     * Checks whether a terminal string has the given clean name, without adding it to the dictionary or creating
+     * strings for the common {@code "WAT-FS-<number> : <name>"} form.
+     *
+     * @param name      terminal as shown on the site
+     * @param cleanName clean name to compare with
+     * @return true if {@code name} cleans to {@code cleanName}
+     */
+    static boolean hasCleanName(CharSequence name, String cleanName) {
+        int start = startsWith(name, PREFIX, 0) ? PREFIX.length() : 0;
+        if (indexOf(name, PREFIX, start) != -1) {
+            // Prefix in the middle, rare enough to clean the usual way
+            return clean(name.toString()).equals(cleanName);
+        }
+
+        int separator = indexOf(name, SEPARATOR, start);
+        int end = name.length();
+        if (separator != -1) {
+            start = separator + SEPARATOR.length();
+            int next = indexOf(name, SEPARATOR, start);
+            if (next != -1) {
+                end = next;
+            }
+        }
+        return end - start == cleanName.length() && startsWith(name, cleanName, start);
+    }
+
+    private static boolean startsWith(CharSequence s, String prefix, int offset) {
+        if (offset + prefix.length() > s.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, String target, int from) {
+        for (int i = from; i + target.length() <= s.length(); i++) {
+            if (startsWith(s, target, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Strips the WAT-FS- prefix and the terminal number; names without a number are only stripped of the prefix
+    private static String clean(String name) {
+        String stripped = name.replace(PREFIX, "");
+        int separator = stripped.indexOf(SEPARATOR);
+        if (separator == -1) {
+            return stripped;
+        }
+        int start = separator + SEPARATOR.length();
+        int end = stripped.indexOf(SEPARATOR, start);
+        return stripped.substring(start, end == -1 ? stripped.length() : end);
+    }
+
+    /**
+     * @return id of this terminal
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return id shared by all terminals with the same clean name
+     */
+    public int getCleanId() {
+        return cleanId;
+    }
+
+    /**
+     * @return terminal as shown on the site
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return terminal name without its prefix and terminal number
+     */
+    public String getCleanName() {
+        return cleanName;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
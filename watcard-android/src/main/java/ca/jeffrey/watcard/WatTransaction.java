@@ -2,18 +2,25 @@ package ca.jeffrey.watcard;
 
 
 import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneOffset;
 import org.threeten.bp.format.DateTimeFormatter;
 
 import java.io.Serializable;
 import java.text.NumberFormat;
+import java.util.List;
 import java.util.Locale;
 
 public class WatTransaction implements Serializable {
 
     // Date format to be passed in URL
     protected static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd+HH:mm:ss");
-    // Base transactions URL
+    // DateTime format of transactions received from the requested data
+    // Note: This format is different from the DateTime format that is passed in the url itself
+    protected static final DateTimeFormatter RESPONSE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy h:mm:ss a");
+    // Transactions URL on the default server, see WatSession#getBaseUrl()
     protected static final String BASE_URL = "https://watcard.uwaterloo.ca/OneWeb/Financial/TransactionsPass";
+    // Number of columns in a transaction row
+    static final int COLUMNS = 6;
 
     // Fields
     private LocalDateTime dateTime;
@@ -23,6 +30,8 @@ public class WatTransaction implements Serializable {
     private int unit;
     private String type;
     private String terminal;
+    // Interned entry of terminal, resolved again after deserialization
+    private transient WatTerminal terminalEntry;
 
     /**
      * Constructor
@@ -40,15 +49,47 @@ public class WatTransaction implements Serializable {
         this.account = account;
         this.unit = unit;
         this.type = type;
-        this.terminal = terminal;
+        setTerminal(terminal);
         balanceType = determineBalanceType();
     }
 
+    /**
+     * Creates a transaction from the cell text of a {@code TransactionsPass} table row.
+     *
+     * @param data cell text in column order
+     * @return WatTransaction, or null if the row is not a transaction (e.g. "No transactions found!")
+     */
+    static WatTransaction fromRow(List<? extends CharSequence> data) {
+        if (data.size() < COLUMNS) {
+            return null;
+        }
+
+        // Store selected data in corresponding fields
+        LocalDateTime dateTime = LocalDateTime.ofEpochSecond(WatFieldParser.parseEpochSecond(data.get(0)), 0,
+                ZoneOffset.UTC);
+        float amount = WatFieldParser.parseCents(data.get(1)) / 100f;
+        int account = WatFieldParser.parseInt(data.get(2));
+        int unit = WatFieldParser.parseInt(data.get(3));
+        String type = data.get(4).toString();
+        String terminal = data.get(5).toString();
+
+        return new WatTransaction(dateTime, amount, account, unit, type, terminal);
+    }
+
     /**
      * Determines from what balance account funds were deducted from
      * @return WatBalanceType enum
      */
     private WatBalanceType determineBalanceType() {
+        return balanceTypeOf(account);
+    }
+
+    /**
+     * Returns the balance type of an account number
+     * @param account account number
+     * @return WatBalanceType enum
+     */
+    static WatBalanceType balanceTypeOf(int account) {
         switch (account) {
             case 1:
                 return WatBalanceType.VILLAGE_MEAL;
@@ -79,6 +120,30 @@ public class WatTransaction implements Serializable {
         }
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof WatTransaction)) {
+            return false;
+        }
+        WatTransaction other = (WatTransaction) o;
+        return Float.compare(amount, other.amount) == 0 && account == other.account && unit == other.unit
+                && dateTime.equals(other.dateTime) && type.equals(other.type) && terminal.equals(other.terminal);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = dateTime.hashCode();
+        result = 31 * result + Float.floatToIntBits(amount);
+        result = 31 * result + account;
+        result = 31 * result + unit;
+        result = 31 * result + type.hashCode();
+        result = 31 * result + terminal.hashCode();
+        return result;
+    }
+
     @Override
     public String toString() {
         return String.format("Date: %s%nAmount: $%.2f%nAccount: %s%nUnit: %d%nType: %s%nTerminal: %s",
@@ -97,11 +162,19 @@ public class WatTransaction implements Serializable {
     }
 
     public boolean isFlex() {
+        return isFlex(balanceType);
+    }
+
+    public boolean isMeal() {
+        return isMeal(balanceType);
+    }
+
+    static boolean isFlex(WatBalanceType balanceType) {
         return balanceType == WatBalanceType.FLEX1 || balanceType == WatBalanceType.FLEX2
                 || balanceType == WatBalanceType.FLEX3;
     }
 
-    public boolean isMeal() {
+    static boolean isMeal(WatBalanceType balanceType) {
         return balanceType == WatBalanceType.VILLAGE_MEAL
                 || balanceType == WatBalanceType.BEST_BUY_MEAL
                 || balanceType == WatBalanceType.FOOD_PLAN
@@ -128,6 +201,13 @@ public class WatTransaction implements Serializable {
         return amount;
     }
 
+    /**
+     * @return amount in cents, free of float rounding
+     */
+    public int getAmountCents() {
+        return Math.round(amount * 100);
+    }
+
     public String getAmountString() {
         return NumberFormat.getCurrencyInstance(Locale.CANADA).format(amount);
     }
@@ -165,10 +245,19 @@ public class WatTransaction implements Serializable {
     }
 
     public String getCleanTerminal() {
-        return terminal.replace("WAT-FS-", "").split(" : ")[1];
+        return getTerminalEntry().getCleanName();
+    }
+
+    public WatTerminal getTerminalEntry() {
+        if (terminalEntry == null) {
+            terminalEntry = WatTerminal.of(terminal);
+        }
+        return terminalEntry;
     }
 
     public void setTerminal(String terminal) {
-        this.terminal = terminal;
+        // Keep the interned instance so repeated terminals share one string
+        terminalEntry = terminal == null ? null : WatTerminal.of(terminal);
+        this.terminal = terminalEntry == null ? null : terminalEntry.getName();
     }
 }
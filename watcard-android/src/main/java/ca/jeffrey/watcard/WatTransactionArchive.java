@@ -0,0 +1,714 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local archive of an account's transactions for offline history, queried by date range without loading it onto the
+ * heap. The archive file holds fixed-width records sorted by date &amp; time and is read through a memory map, so a
+ * query only touches the pages of the records it returns.
+ * <p>
+ * Range lookups binary search a sparse index holding the date &amp; time of every 256th record, then the records of
+ * one block. The index is built when the archive is opened. Types and terminals are stored as ids into a dictionary
+ * kept in a second file next to the archive, {@code <name>.strings}.
+ * <p>
+ * Queries return transactions newest first, like the WatCard site. {@link #scan(LocalDateTime, LocalDateTime)} reads
+ * a range oldest first through a {@link Cursor} that takes every field straight from the mapped file, without creating
+ * objects per row, e.g. for {@link WatAggregation#of(Cursor, WatAggregation.GroupBy)}.
+ */
+public class WatTransactionArchive implements Closeable {
+
+    private static final int MAGIC = 0x57415441; // "WATA"
+    private static final int VERSION = 1;
+
+    // Header: magic, version, record count, rest reserved
+    private static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 8;
+
+    // Record: epoch second, cents, account, unit, type id, terminal id, reserved
+    private static final int RECORD_SIZE = 32;
+    private static final int EPOCH_SECOND = 0;
+    private static final int CENTS = 8;
+    private static final int ACCOUNT = 12;
+    private static final int UNIT = 16;
+    private static final int TYPE = 20;
+    private static final int TERMINAL = 24;
+
+    // String id of null
+    private static final int NULL_ID = -1;
+
+    // Records per index entry, two pages of records
+    private static final int BLOCK = 256;
+
+    private final File file;
+    private final File stringsFile;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int count;
+
+    // Epoch second of the first record of each block
+    private long[] index = new long[16];
+
+    // Dictionary of type and terminal strings, ids in order of first use. Entries are never changed once set, so
+    // cursors can keep reading the array while appends grow it.
+    private String[] strings = new String[64];
+    private int stringCount;
+    private final Map<String, Integer> stringIds = new HashMap<>();
+
+    /**
+     * Opens the archive backed by {@code file}, creating it if needed. An append interrupted by a crash is dropped.
+     *
+     * @param file archive file
+     * @throws IOException if the file cannot be read or is not a transaction archive
+     */
+    public WatTransactionArchive(File file) throws IOException {
+        this.file = file;
+        this.stringsFile = new File(file.getPath() + ".strings");
+
+        if (!file.exists() || file.length() == 0) {
+            writeHeader(file, 0);
+        }
+        loadStrings();
+        open();
+    }
+
+    private static void writeHeader(File file, int count) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(count);
+            out.write(new byte[HEADER_SIZE - 16]);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("Not a transaction archive: " + file);
+            }
+            long committed = raf.readLong();
+            long committedLength = HEADER_SIZE + committed * RECORD_SIZE;
+            if (committed < 0 || committed > Integer.MAX_VALUE || committedLength > raf.length()) {
+                throw new IOException("Truncated transaction archive: " + file);
+            }
+            // Records past the count belong to an append that never completed
+            if (committedLength < raf.length()) {
+                raf.setLength(committedLength);
+            }
+            count = (int) committed;
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        map();
+        buildIndex(0);
+    }
+
+    private void map() throws IOException {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) count * RECORD_SIZE);
+    }
+
+    // Rebuilds the index from the block holding record `from`
+    private void buildIndex(int from) {
+        int blocks = (count + BLOCK - 1) / BLOCK;
+        if (blocks > index.length) {
+            index = Arrays.copyOf(index, Math.max(blocks, index.length * 2));
+        }
+        for (int block = from / BLOCK; block < blocks; block++) {
+            index[block] = epochSecondAt(buffer, block * BLOCK);
+        }
+    }
+
+    private void loadStrings() throws IOException {
+        if (!stringsFile.exists()) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(stringsFile, "rw");
+        try {
+            long length = 0;
+            try {
+                while (length < in.length()) {
+                    addString(in.readUTF());
+                    length = in.getFilePointer();
+                }
+            }
+            catch (EOFException eof) {
+                // String cut off by a crash, no committed record refers to it
+                in.setLength(length);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private int addString(String s) {
+        if (stringCount == strings.length) {
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        }
+        strings[stringCount] = s;
+        stringIds.put(s, stringCount);
+        return stringCount++;
+    }
+
+    private int stringId(String s) {
+        if (s == null) {
+            return NULL_ID;
+        }
+        Integer id = stringIds.get(s);
+        return id != null ? id : addString(s);
+    }
+
+    /**
+     * Adds fetched transactions to the archive. Transactions identical to archived ones in the same second are
+     * skipped, counted rather than collapsed, so overlapping fetches can be appended as they are. Transactions newer
+     * than the archive are appended in place; older ones are merged by rewriting the archive.
+     *
+     * @param fetched transactions to add, in any order
+     * @return number of transactions added
+     * @throws IOException if writing fails
+     */
+    public synchronized int append(List<WatTransaction> fetched) throws IOException {
+        checkOpen();
+        if (fetched.isEmpty()) {
+            return 0;
+        }
+        List<WatTransaction> sorted = new ArrayList<>(fetched);
+        Collections.sort(sorted, WatTransactionStore.BY_DATE);
+
+        // Count the archived transactions in the fetched range to tell them apart from new ones
+        Map<WatTransaction, Integer> known = new HashMap<>();
+        int from = lowerBound(epochSecondOf(sorted.get(0)));
+        int to = upperBound(epochSecondOf(sorted.get(sorted.size() - 1)));
+        for (int i = from; i < to; i++) {
+            WatTransaction transaction = toTransaction(buffer, strings, i);
+            Integer n = known.get(transaction);
+            known.put(transaction, n == null ? 1 : n + 1);
+        }
+
+        List<WatTransaction> added = new ArrayList<>();
+        for (WatTransaction transaction : sorted) {
+            Integer n = known.get(transaction);
+            if (n == null) {
+                added.add(transaction);
+            }
+            else if (n == 1) {
+                known.remove(transaction);
+            }
+            else {
+                known.put(transaction, n - 1);
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+
+        int firstStringId = stringCount;
+        ByteBuffer records = ByteBuffer.allocate(added.size() * RECORD_SIZE);
+        for (WatTransaction transaction : added) {
+            records.putLong(epochSecondOf(transaction))
+                    .putInt(Math.round(transaction.getAmount() * 100))
+                    .putInt(transaction.getAccount())
+                    .putInt(transaction.getUnit())
+                    .putInt(stringId(transaction.getType()))
+                    .putInt(stringId(transaction.getTerminal()))
+                    .putInt(0);
+        }
+        records.flip();
+
+        // Strings go first so that committed records never refer to missing ones
+        writeStrings(firstStringId);
+        int position = upperBound(epochSecondOf(added.get(0)));
+        if (position == count) {
+            appendRecords(records);
+        }
+        else {
+            mergeRecords(position, records);
+        }
+        return added.size();
+    }
+
+    // Appends the strings from id `from` to the dictionary file, or forgets them if that fails
+    private void writeStrings(int from) throws IOException {
+        if (from == stringCount) {
+            return;
+        }
+        long length = stringsFile.length();
+        try {
+            FileOutputStream stream = new FileOutputStream(stringsFile, true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            try {
+                for (int id = from; id < stringCount; id++) {
+                    out.writeUTF(strings[id]);
+                }
+                out.flush();
+                // On disk before any record that refers to them
+                stream.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            for (int id = from; id < stringCount; id++) {
+                stringIds.remove(strings[id]);
+                strings[id] = null;
+            }
+            stringCount = from;
+            RandomAccessFile strings = new RandomAccessFile(stringsFile, "rw");
+            try {
+                strings.setLength(length);
+            }
+            finally {
+                strings.close();
+            }
+            throw e;
+        }
+    }
+
+    // Writes new records after the last one, then commits them by updating the count
+    private void appendRecords(ByteBuffer records) throws IOException {
+        int added = records.remaining() / RECORD_SIZE;
+        FileChannel channel = raf.getChannel();
+        long position = HEADER_SIZE + (long) count * RECORD_SIZE;
+        while (records.hasRemaining()) {
+            position += channel.write(records, position);
+        }
+        // The records must reach the disk before the count that commits them
+        channel.force(false);
+        writeCount(channel, count + added);
+        channel.force(false);
+
+        int previous = count;
+        count += added;
+        map();
+        buildIndex(previous);
+    }
+
+    // Writes the merged archive to a new file and renames it over the old one, which open cursors keep reading
+    private void mergeRecords(int position, ByteBuffer records) throws IOException {
+        int added = records.remaining() / RECORD_SIZE;
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            long written = 0;
+            long prefix = HEADER_SIZE + (long) position * RECORD_SIZE;
+            while (written < prefix) {
+                written += raf.getChannel().transferTo(written, prefix - written, channel);
+            }
+
+            // Archived records come before new ones of the same second
+            ByteBuffer merged = ByteBuffer.allocate((count - position + added) * RECORD_SIZE);
+            int i = position;
+            while (i < count || records.hasRemaining()) {
+                if (records.hasRemaining()
+                        && (i == count || records.getLong(records.position()) < epochSecondAt(buffer, i))) {
+                    int end = records.position() + RECORD_SIZE;
+                    ByteBuffer record = records.duplicate();
+                    record.limit(end);
+                    merged.put(record);
+                    records.position(end);
+                }
+                else {
+                    ByteBuffer record = buffer.duplicate();
+                    record.position(offsetOf(i));
+                    record.limit(offsetOf(i) + RECORD_SIZE);
+                    merged.put(record);
+                    i++;
+                }
+            }
+            merged.flip();
+            while (merged.hasRemaining()) {
+                written += channel.write(merged, written);
+            }
+            writeCount(channel, count + added);
+            // Fully on disk before it replaces the archive
+            channel.force(false);
+        }
+        finally {
+            out.close();
+        }
+
+        raf.close();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            raf = new RandomAccessFile(file, "rw");
+            throw new IOException("Could not replace " + file);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        count += added;
+        map();
+        buildIndex(position);
+    }
+
+    private static void writeCount(FileChannel channel, int count) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putLong(count).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, COUNT_OFFSET + header.position());
+        }
+    }
+
+    /**
+     * Returns the archived transactions completed between two dates, inclusive.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return archived WatTransactions completed between {@code begin} and {@code end}, newest first
+     */
+    public List<WatTransaction> getTransactions(LocalDateTime begin, LocalDateTime end) {
+        return getTransactions(begin, end, 0);
+    }
+
+    /**
+     * Returns the archived transactions completed between two dates, containing only the last {@code quantity}
+     * transactions.
+     *
+     * @param begin    starting date &amp; time
+     * @param end      ending date &amp; time
+     * @param quantity number of transactions to return, 0 for all transactions within those dates
+     * @return latest {@code quantity} archived WatTransactions from {@code begin} to {@code end}, newest first
+     */
+    public synchronized List<WatTransaction> getTransactions(LocalDateTime begin, LocalDateTime end, int quantity) {
+        checkOpen();
+        int from = lowerBound(WatTransactionTable.toEpochSecond(begin));
+        int to = upperBound(WatTransactionTable.toEpochSecond(end));
+        if (quantity > 0) {
+            from = Math.max(from, to - quantity);
+        }
+
+        List<WatTransaction> transactions = new ArrayList<>(Math.max(0, to - from));
+        for (int i = to - 1; i >= from; i--) {
+            transactions.add(toTransaction(buffer, strings, i));
+        }
+        return transactions;
+    }
+
+    /**
+     * Passes the archived transactions completed between two dates to {@code consumer}, newest first.
+     *
+     * @param begin    starting date &amp; time
+     * @param end      ending date &amp; time
+     * @param consumer receives each transaction
+     * @return number of transactions passed to {@code consumer}
+     */
+    public int forEachTransaction(LocalDateTime begin, LocalDateTime end, WatTransactionConsumer consumer) {
+        Cursor cursor = scan(begin, end);
+        int passed = 0;
+        for (int i = cursor.to - 1; i >= cursor.from; i--) {
+            passed++;
+            if (!consumer.accept(toTransaction(cursor.buffer, cursor.strings, i))) {
+                break;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Returns a cursor over the archived transactions completed between two dates, oldest first. The cursor reads
+     * the archive as it was when it was created; later appends are not seen.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return new cursor positioned before the first transaction
+     */
+    public synchronized Cursor scan(LocalDateTime begin, LocalDateTime end) {
+        checkOpen();
+        int from = lowerBound(WatTransactionTable.toEpochSecond(begin));
+        int to = upperBound(WatTransactionTable.toEpochSecond(end));
+        return new Cursor(buffer, strings, from, Math.max(from, to));
+    }
+
+    /**
+     * Returns a cursor over every archived transaction, oldest first.
+     *
+     * @return new cursor positioned before the first transaction
+     */
+    public synchronized Cursor scan() {
+        checkOpen();
+        return new Cursor(buffer, strings, 0, count);
+    }
+
+    /**
+     * @return number of archived transactions
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return date &amp; time of the oldest archived transaction, or null if there are none
+     */
+    public synchronized LocalDateTime getOldest() {
+        return count == 0 ? null : WatTransactionTable.fromEpochSecond(epochSecondAt(buffer, 0));
+    }
+
+    /**
+     * @return date &amp; time of the newest archived transaction, or null if there are none
+     */
+    public synchronized LocalDateTime getNewest() {
+        return count == 0 ? null : WatTransactionTable.fromEpochSecond(epochSecondAt(buffer, count - 1));
+    }
+
+    /**
+     * Empties the archive.
+     *
+     * @throws IOException if the files cannot be rewritten
+     */
+    public synchronized void clear() throws IOException {
+        checkOpen();
+        raf.close();
+        writeHeader(file, 0);
+        if (stringsFile.exists() && !stringsFile.delete()) {
+            throw new IOException("Could not delete " + stringsFile);
+        }
+        strings = new String[64];
+        stringCount = 0;
+        stringIds.clear();
+        open();
+    }
+
+    /**
+     * Closes the archive file. The mapping is released once no cursor refers to it.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (raf == null) {
+            throw new IllegalStateException("Archive closed");
+        }
+    }
+
+    /**
+     * @param epochSecond date &amp; time as epoch seconds at UTC
+     * @return index of the first record at or after {@code epochSecond}
+     */
+    private int lowerBound(long epochSecond) {
+        // Find the first block starting at or after epochSecond; the record sought is in the block before it
+        int low = 0;
+        int high = (count + BLOCK - 1) / BLOCK;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index[mid] < epochSecond) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        if (low == 0) {
+            return 0;
+        }
+
+        high = Math.min(low * BLOCK, count);
+        low = (low - 1) * BLOCK + 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (epochSecondAt(buffer, mid) < epochSecond) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param epochSecond date &amp; time as epoch seconds at UTC
+     * @return index of the first record after {@code epochSecond}
+     */
+    private int upperBound(long epochSecond) {
+        return epochSecond == Long.MAX_VALUE ? count : lowerBound(epochSecond + 1);
+    }
+
+    private static int offsetOf(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private static long epochSecondAt(ByteBuffer buffer, int record) {
+        return buffer.getLong(offsetOf(record) + EPOCH_SECOND);
+    }
+
+    private static long epochSecondOf(WatTransaction transaction) {
+        return WatTransactionTable.toEpochSecond(transaction.getDateTime());
+    }
+
+    private static String stringAt(String[] strings, int id) {
+        return id == NULL_ID ? null : strings[id];
+    }
+
+    private static WatTransaction toTransaction(ByteBuffer buffer, String[] strings, int record) {
+        int offset = offsetOf(record);
+        return new WatTransaction(WatTransactionTable.fromEpochSecond(buffer.getLong(offset + EPOCH_SECOND)),
+                buffer.getInt(offset + CENTS) / 100f, buffer.getInt(offset + ACCOUNT), buffer.getInt(offset + UNIT),
+                stringAt(strings, buffer.getInt(offset + TYPE)), stringAt(strings, buffer.getInt(offset + TERMINAL)));
+    }
+
+    /**
+     * View of one archived transaction at a time, read straight from the mapped file. Like
+     * {@link WatTransactionTable.Cursor}, it gives {@code WatTransaction}-like access without creating an object per
+     * row. A cursor is not thread-safe but any number can be used at once.
+     */
+    public static class Cursor {
+
+        private final ByteBuffer buffer;
+        private final String[] strings;
+        // Terminal entries of string ids, resolved on first use
+        private final WatTerminal[] terminals;
+        private final int from;
+        private final int to;
+        private int record;
+        private int offset;
+
+        private Cursor(ByteBuffer buffer, String[] strings, int from, int to) {
+            this.buffer = buffer;
+            this.strings = strings;
+            this.terminals = new WatTerminal[strings.length];
+            this.from = from;
+            this.to = to;
+            this.record = from - 1;
+        }
+
+        /**
+         * Advances to the next transaction.
+         *
+         * @return false if there are no more transactions
+         */
+        public boolean next() {
+            if (record + 1 >= to) {
+                record = to;
+                return false;
+            }
+            record++;
+            offset = offsetOf(record);
+            return true;
+        }
+
+        /**
+         * Moves back before the first transaction.
+         */
+        public void reset() {
+            record = from - 1;
+        }
+
+        /**
+         * @return number of transactions in the cursor's range
+         */
+        public int size() {
+            return to - from;
+        }
+
+        private void checkRow() {
+            if (record < from || record >= to) {
+                throw new IllegalStateException("Cursor is not on a transaction");
+            }
+        }
+
+        public long getEpochSecond() {
+            checkRow();
+            return buffer.getLong(offset + EPOCH_SECOND);
+        }
+
+        public LocalDateTime getDateTime() {
+            return WatTransactionTable.fromEpochSecond(getEpochSecond());
+        }
+
+        public int getAmountCents() {
+            checkRow();
+            return buffer.getInt(offset + CENTS);
+        }
+
+        public float getAmount() {
+            return getAmountCents() / 100f;
+        }
+
+        public int getAccount() {
+            checkRow();
+            return buffer.getInt(offset + ACCOUNT);
+        }
+
+        public WatBalanceType getBalanceType() {
+            return WatTransaction.balanceTypeOf(getAccount());
+        }
+
+        public int getUnit() {
+            checkRow();
+            return buffer.getInt(offset + UNIT);
+        }
+
+        public String getType() {
+            checkRow();
+            return stringAt(strings, buffer.getInt(offset + TYPE));
+        }
+
+        public String getTerminal() {
+            checkRow();
+            return stringAt(strings, buffer.getInt(offset + TERMINAL));
+        }
+
+        public WatTerminal getTerminalEntry() {
+            checkRow();
+            int id = buffer.getInt(offset + TERMINAL);
+            if (id == NULL_ID) {
+                return null;
+            }
+            WatTerminal terminal = terminals[id];
+            if (terminal == null) {
+                terminal = terminals[id] = WatTerminal.of(strings[id]);
+            }
+            return terminal;
+        }
+
+        public String getCleanTerminal() {
+            WatTerminal terminal = getTerminalEntry();
+            return terminal == null ? null : terminal.getCleanName();
+        }
+
+        public boolean isFlex() {
+            return WatTransaction.isFlex(getBalanceType());
+        }
+
+        public boolean isMeal() {
+            return WatTransaction.isMeal(getBalanceType());
+        }
+
+        public WatTransaction toTransaction() {
+            checkRow();
+            return WatTransactionArchive.toTransaction(buffer, strings, record);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ca.jeffrey.watcard;
+
+/**
+ * Receives transactions one at a time as they are parsed from a response, see
+ * {@link WatAccount#forEachTransaction(String, WatTransactionConsumer)}.
+ */
+public interface WatTransactionConsumer {
+
+    /**
+     * Called once per transaction, in the order of the response (newest first).
+     *
+     * @param transaction parsed transaction
+     * @return true to continue, false to stop reading and close the response right away
+     */
+    boolean accept(WatTransaction transaction);
+}
@@ -0,0 +1,114 @@
+package ca.jeffrey.watcard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import okhttp3.Response;
+
+/**
+ * Reads transactions from an open response one at a time, parsing each row only when it is asked for. Returned by
+ * {@link WatAccount#openTransactions(String)}.
+ * <p>
+ * Closing the iterator closes the response, so a caller that stops early does not download the rest of it. The
+ * response is also closed once the last transaction has been read. Errors while reading are thrown as
+ * {@code IllegalStateException} with the {@code IOException} as the cause.
+ */
+public class WatTransactionIterator implements Iterator<WatTransaction>, Closeable {
+
+    private final Response response;
+    private final WatTableParser parser;
+    private final WatMetrics metrics;
+    private final String endpoint;
+
+    private WatTransaction next;
+    private boolean closed;
+    private int count;
+    private long parseNanos;
+
+    WatTransactionIterator(Response response, WatMetrics metrics) {
+        this.response = response;
+        this.parser = new WatTableParser(response.body().source());
+        this.metrics = metrics;
+        this.endpoint = WatMetricsInterceptor.endpointOf(response.request().url());
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<String> row;
+            while ((row = parser.nextRow()) != null) {
+                next = WatTransaction.fromRow(row);
+                if (next != null) {
+                    count++;
+                    return true;
+                }
+            }
+        }
+        catch (IOException e) {
+            metrics.onFailure(endpoint, e);
+            closeResponse();
+            throw new IllegalStateException("Could not read transactions", e);
+        }
+        finally {
+            parseNanos += System.nanoTime() - start;
+        }
+
+        close();
+        return false;
+    }
+
+    @Override
+    public WatTransaction next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        WatTransaction transaction = next;
+        next = null;
+        return transaction;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return number of transactions read so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the response. Transactions already returned by {@link #hasNext()} are still available from
+     * {@link #next()}.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closeResponse();
+        metrics.onParse(endpoint, parseNanos, count);
+    }
+
+    private void closeResponse() {
+        closed = true;
+        response.close();
+    }
+}
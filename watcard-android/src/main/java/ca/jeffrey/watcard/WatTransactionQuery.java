@@ -0,0 +1,311 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Filter for the transactions of an account, run with {@link WatAccount#getTransactions(WatTransactionQuery)} or
+ * {@link WatAccount#forEachTransaction(WatTransactionQuery, WatTransactionConsumer)}. For example, Flex purchases of
+ * at least $5 at REV this term:
+ * <pre>
+ * WatTransactionQuery query = new WatTransactionQuery()
+ *         .since(termStart)
+ *         .flex()
+ *         .terminals("REV")
+ *         .spendingAtLeast(5);
+ * </pre>
+ * The date range is sent to the TransactionsPass page, as is the limit when nothing else is filtered. The other
+ * conditions are checked on the cell text of each row as it is parsed, and a {@code WatTransaction} is only created
+ * for the rows that match. Parsing stops once the limit is reached.
+ * <p>
+ * Conditions on different fields must all hold; values given for the same field are alternatives.
+ */
+public class WatTransactionQuery {
+
+    private LocalDateTime begin;
+    // Null for the time the query is run
+    private LocalDateTime end;
+    private int limit;
+
+    // Null to match any
+    private EnumSet<WatBalanceType> balanceTypes;
+    private String[] types;
+    private String[] terminals;
+    private int minCents = Integer.MIN_VALUE;
+    private int maxCents = Integer.MAX_VALUE;
+
+    /**
+     * Matches the transactions completed between two dates, inclusive.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return this query
+     */
+    public WatTransactionQuery between(LocalDateTime begin, LocalDateTime end) {
+        if (begin == null || end == null) {
+            throw new IllegalArgumentException("begin and end must not be null");
+        }
+        this.begin = begin;
+        this.end = end;
+        return this;
+    }
+
+    /**
+     * Matches the transactions completed from a given date to the time the query is run.
+     *
+     * @param begin starting date &amp; time
+     * @return this query
+     */
+    public WatTransactionQuery since(LocalDateTime begin) {
+        if (begin == null) {
+            throw new IllegalArgumentException("begin must not be null");
+        }
+        this.begin = begin;
+        this.end = null;
+        return this;
+    }
+
+    /**
+     * Matches transactions on any of the given balances.
+     *
+     * @param types balance types
+     * @return this query
+     */
+    public WatTransactionQuery balanceTypes(WatBalanceType... types) {
+        if (balanceTypes == null) {
+            balanceTypes = EnumSet.noneOf(WatBalanceType.class);
+        }
+        balanceTypes.addAll(Arrays.asList(types));
+        return this;
+    }
+
+    /**
+     * Matches transactions on Flex Dollars, along with any other balance types given.
+     *
+     * @return this query
+     */
+    public WatTransactionQuery flex() {
+        for (WatBalanceType type : WatBalanceType.values()) {
+            if (WatTransaction.isFlex(type)) {
+                balanceTypes(type);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Matches transactions on the meal plan, along with any other balance types given.
+     *
+     * @return this query
+     */
+    public WatTransactionQuery meal() {
+        for (WatBalanceType type : WatBalanceType.values()) {
+            if (WatTransaction.isMeal(type)) {
+                balanceTypes(type);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Matches transactions of any of the given types.
+     *
+     * @param types transaction types as shown on the site
+     * @return this query
+     */
+    public WatTransactionQuery types(String... types) {
+        this.types = concat(this.types, types);
+        return this;
+    }
+
+    /**
+     * Matches transactions at any of the given terminals. Each name matches either the terminal as shown on the site,
+     * e.g. "WAT-FS-V1 : REV", or its clean name, e.g. "REV".
+     *
+     * @param terminals terminal names
+     * @return this query
+     */
+    public WatTransactionQuery terminals(String... terminals) {
+        this.terminals = concat(this.terminals, terminals);
+        return this;
+    }
+
+    /**
+     * Matches transactions with an amount in a range, inclusive. Purchases have negative amounts.
+     *
+     * @param min lowest amount
+     * @param max highest amount
+     * @return this query
+     */
+    public WatTransactionQuery amountBetween(float min, float max) {
+        return amountCentsBetween(Math.round(min * 100), Math.round(max * 100));
+    }
+
+    /**
+     * Matches transactions with an amount in cents in a range, inclusive.
+     *
+     * @param min lowest amount in cents
+     * @param max highest amount in cents
+     * @return this query
+     */
+    public WatTransactionQuery amountCentsBetween(int min, int max) {
+        if (min > max) {
+            throw new IllegalArgumentException("min > max");
+        }
+        minCents = min;
+        maxCents = max;
+        return this;
+    }
+
+    /**
+     * Matches transactions with a negative amount.
+     *
+     * @return this query
+     */
+    public WatTransactionQuery spendingOnly() {
+        maxCents = Math.min(maxCents, -1);
+        return this;
+    }
+
+    /**
+     * Matches purchases of at least a given amount.
+     *
+     * @param amount smallest amount spent, e.g. 5 for $5
+     * @return this query
+     */
+    public WatTransactionQuery spendingAtLeast(float amount) {
+        maxCents = Math.min(maxCents, -Math.round(amount * 100));
+        return this;
+    }
+
+    /**
+     * Keeps only the latest matching transactions.
+     *
+     * @param limit number of transactions to return, 0 for all
+     * @return this query
+     */
+    public WatTransactionQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit < 0");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    public LocalDateTime getBegin() {
+        return begin;
+    }
+
+    /**
+     * @return end of the date range, or null if it ends when the query is run
+     */
+    public LocalDateTime getEnd() {
+        return end;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Builds the TransactionsPass URL for this query, with the conditions the page supports.
+     *
+     * @param account account the query runs on
+     * @return request URL
+     * @throws IllegalStateException if no date range is set
+     */
+    String url(WatAccount account) {
+        if (begin == null) {
+            throw new IllegalStateException("No date range, call between(...) or since(...) first");
+        }
+        // The server's limit applies before filtering, so it only helps when every row matches
+        return account.transactionsUrl(begin, end != null ? end : LocalDateTime.now(), filtersRows() ? 0 : limit);
+    }
+
+    /**
+     * @return true if rows returned for the date range may still not match
+     */
+    boolean filtersRows() {
+        return balanceTypes != null || types != null || terminals != null || minCents != Integer.MIN_VALUE
+                || maxCents != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Checks the conditions not sent to the server against the cell text of a {@code TransactionsPass} row, cheapest
+     * first, without creating any objects.
+     *
+     * @param cells cell text in column order, at least {@link WatTransaction#COLUMNS} cells
+     * @return true if the row matches
+     */
+    boolean matches(List<? extends CharSequence> cells) {
+        if (balanceTypes != null
+                && !balanceTypes.contains(WatTransaction.balanceTypeOf(WatFieldParser.parseInt(cells.get(2))))) {
+            return false;
+        }
+        if (minCents != Integer.MIN_VALUE || maxCents != Integer.MAX_VALUE) {
+            int cents = WatFieldParser.parseCents(cells.get(1));
+            if (cents < minCents || cents > maxCents) {
+                return false;
+            }
+        }
+        if (types != null && !matchesAny(types, cells.get(4))) {
+            return false;
+        }
+        return terminals == null || matchesTerminal(cells.get(5));
+    }
+
+    /**
+     * Checks every condition, including the date range, against a transaction, e.g. to filter stored transactions the
+     * same way.
+     *
+     * @param transaction transaction to check
+     * @return true if the transaction matches
+     */
+    public boolean matches(WatTransaction transaction) {
+        LocalDateTime dateTime = transaction.getDateTime();
+        if ((begin != null && dateTime.isBefore(begin)) || (end != null && dateTime.isAfter(end))) {
+            return false;
+        }
+        if (balanceTypes != null && !balanceTypes.contains(WatTransaction.balanceTypeOf(transaction.getAccount()))) {
+            return false;
+        }
+        int cents = transaction.getAmountCents();
+        if (cents < minCents || cents > maxCents) {
+            return false;
+        }
+        if (types != null && !matchesAny(types, transaction.getType())) {
+            return false;
+        }
+        return terminals == null || matchesTerminal(transaction.getTerminal());
+    }
+
+    private boolean matchesTerminal(CharSequence terminal) {
+        for (String name : terminals) {
+            if (name.contentEquals(terminal) || WatTerminal.hasCleanName(terminal, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(String[] values, CharSequence text) {
+        for (String value : values) {
+            if (value.contentEquals(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] concat(String[] values, String[] more) {
+        if (values == null) {
+            return more.clone();
+        }
+        String[] all = Arrays.copyOf(values, values.length + more.length);
+        System.arraycopy(more, 0, all, values.length, more.length);
+        return all;
+    }
+}
@@ -0,0 +1,283 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneOffset;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Append-only file of the transactions fetched for one account, along with the date range that has been synced.
+ * The file is a header followed by batches of transaction records, each closed by a record of the range it covers.
+ * A batch cut off by a crash is dropped the next time the file is opened.
+ */
+final class WatTransactionStore {
+
+    private static final int MAGIC = 0x57415454; // "WATT"
+    private static final int VERSION = 1;
+
+    // Record tags
+    private static final byte RECORD_TRANSACTION = 'T';
+    private static final byte RECORD_RANGE = 'R';
+
+    // Orders transactions from oldest to newest
+    static final Comparator<WatTransaction> BY_DATE = new Comparator<WatTransaction>() {
+        @Override
+        public int compare(WatTransaction a, WatTransaction b) {
+            return a.getDateTime().compareTo(b.getDateTime());
+        }
+    };
+
+    private final File file;
+    // All stored transactions, oldest first
+    private final List<WatTransaction> transactions = new ArrayList<>();
+    private LocalDateTime syncedFrom;
+    private LocalDateTime syncedUntil;
+
+    /**
+     * Opens the store backed by {@code file}, creating it if needed.
+     *
+     * @param file backing file
+     * @throws IOException if the file cannot be read or is not a transaction store
+     */
+    WatTransactionStore(File file) throws IOException {
+        this.file = file;
+
+        if (!file.exists() || file.length() == 0) {
+            writeHeader();
+        }
+        else {
+            load();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        // Transactions are only kept once the range record closing their batch has been read
+        List<WatTransaction> pending = new ArrayList<>();
+        long length = 0;
+        long committedLength = 0;
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a transaction store: " + file);
+            }
+            length = committedLength = 8;
+
+            while (true) {
+                int tag = in.read();
+                if (tag == -1) {
+                    break;
+                }
+                if (tag == RECORD_TRANSACTION) {
+                    WatTransaction transaction = readTransaction(in);
+                    pending.add(transaction);
+                    length += 1 + 8 + 4 + 4 + 4 + utfLength(transaction.getType())
+                            + utfLength(transaction.getTerminal());
+                }
+                else if (tag == RECORD_RANGE) {
+                    LocalDateTime from = fromEpochSecond(in.readLong());
+                    LocalDateTime until = fromEpochSecond(in.readLong());
+                    length += 1 + 8 + 8;
+
+                    transactions.addAll(pending);
+                    pending.clear();
+                    addRange(from, until);
+                    committedLength = length;
+                }
+                else {
+                    throw new IOException("Unknown record in " + file);
+                }
+            }
+        }
+        catch (EOFException eof) {
+            // Incomplete trailing record, truncated below
+        }
+        finally {
+            in.close();
+        }
+
+        // Drop a batch cut off by a crash so the next append starts on a record boundary
+        if (committedLength < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(committedLength);
+            }
+            finally {
+                raf.close();
+            }
+        }
+
+        // Backfilled records may have been appended after newer ones
+        Collections.sort(transactions, BY_DATE);
+    }
+
+    /**
+     * Appends transactions and the range they were fetched for as one batch. An interrupted append is discarded when
+     * the store is next opened, so it is fetched again on the next sync.
+     *
+     * @param fetched transactions to add
+     * @param from    start of the synced range
+     * @param until   end of the synced range
+     * @throws IOException if writing fails
+     */
+    synchronized void append(List<WatTransaction> fetched, LocalDateTime from, LocalDateTime until)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            for (WatTransaction transaction : fetched) {
+                out.writeByte(RECORD_TRANSACTION);
+                writeTransaction(out, transaction);
+            }
+            out.writeByte(RECORD_RANGE);
+            out.writeLong(toEpochSecond(from));
+            out.writeLong(toEpochSecond(until));
+        }
+        finally {
+            out.close();
+        }
+
+        transactions.addAll(fetched);
+        Collections.sort(transactions, BY_DATE);
+        addRange(from, until);
+    }
+
+    private void addRange(LocalDateTime from, LocalDateTime until) {
+        if (syncedFrom == null || from.isBefore(syncedFrom)) {
+            syncedFrom = from;
+        }
+        if (syncedUntil == null || until.isAfter(syncedUntil)) {
+            syncedUntil = until;
+        }
+    }
+
+    /**
+     * Returns the stored transactions completed between two dates, inclusive, newest first like the WatCard site.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return matching transactions
+     */
+    synchronized List<WatTransaction> query(LocalDateTime begin, LocalDateTime end) {
+        List<WatTransaction> result = new ArrayList<>();
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            WatTransaction transaction = transactions.get(i);
+            LocalDateTime dateTime = transaction.getDateTime();
+            if (dateTime.isBefore(begin)) {
+                break;
+            }
+            if (!dateTime.isAfter(end)) {
+                result.add(transaction);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of stored transactions
+     */
+    synchronized int size() {
+        return transactions.size();
+    }
+
+    /**
+     * @return date &amp; time of the newest stored transaction, or null if there are none
+     */
+    synchronized LocalDateTime getNewest() {
+        return transactions.isEmpty() ? null : transactions.get(transactions.size() - 1).getDateTime();
+    }
+
+    /**
+     * @return start of the synced range, or null if nothing has been synced
+     */
+    synchronized LocalDateTime getSyncedFrom() {
+        return syncedFrom;
+    }
+
+    /**
+     * @return end of the synced range, or null if nothing has been synced
+     */
+    synchronized LocalDateTime getSyncedUntil() {
+        return syncedUntil;
+    }
+
+    /**
+     * Empties the backing file and forgets everything stored.
+     *
+     * @throws IOException if the file cannot be rewritten
+     */
+    synchronized void clear() throws IOException {
+        transactions.clear();
+        syncedFrom = syncedUntil = null;
+        writeHeader();
+    }
+
+    private static void writeTransaction(DataOutputStream out, WatTransaction transaction) throws IOException {
+        out.writeLong(toEpochSecond(transaction.getDateTime()));
+        out.writeFloat(transaction.getAmount());
+        out.writeInt(transaction.getAccount());
+        out.writeInt(transaction.getUnit());
+        out.writeUTF(transaction.getType());
+        out.writeUTF(transaction.getTerminal());
+    }
+
+    private static WatTransaction readTransaction(DataInputStream in) throws IOException {
+        LocalDateTime dateTime = fromEpochSecond(in.readLong());
+        float amount = in.readFloat();
+        int account = in.readInt();
+        int unit = in.readInt();
+        String type = in.readUTF();
+        String terminal = in.readUTF();
+        return new WatTransaction(dateTime, amount, account, unit, type, terminal);
+    }
+
+    // Transaction times are local to the WatCard server, so they are stored without a zone
+    private static long toEpochSecond(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static LocalDateTime fromEpochSecond(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+    }
+
+    // Size of a string written with writeUTF
+    private static int utfLength(String s) {
+        int length = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            }
+            else if (c > 0x07FF) {
+                length += 3;
+            }
+            else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+}
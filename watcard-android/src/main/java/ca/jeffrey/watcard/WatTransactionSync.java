@@ -0,0 +1,149 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a local copy of an account's transaction history so that only new activity is downloaded. Fetched
+ * transactions are appended to a file per account; later queries fetch just the transactions since the newest one
+ * stored (the watermark) and are otherwise answered from the file.
+ */
+public class WatTransactionSync {
+
+    private final WatAccount account;
+    private final WatTransactionStore store;
+
+    /**
+     * Constructor
+     *
+     * @param account   account to sync
+     * @param directory directory holding the transaction stores
+     * @throws IOException if the account's store cannot be opened
+     */
+    public WatTransactionSync(WatAccount account, File directory) throws IOException {
+        this.account = account;
+        this.store = new WatTransactionStore(new File(directory, "transactions-" + account.getAccount() + ".dat"));
+    }
+
+    /**
+     * Returns a list of transactions from a given date to now, fetching only what is not stored yet.
+     *
+     * @param begin starting date &amp; time
+     * @return list of WatTransactions completed from {@code begin} to now, newest first
+     * @throws IOException if fetching new transactions fails
+     */
+    public List<WatTransaction> getTransactions(LocalDateTime begin) throws IOException {
+        return getTransactions(begin, LocalDateTime.now());
+    }
+
+    /**
+     * Returns a list of all transactions completed between two dates, fetching only what is not stored yet.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return List of all WatTransaction completed between {@code begin} and {@code end}, newest first
+     * @throws IOException if fetching new transactions fails
+     */
+    public synchronized List<WatTransaction> getTransactions(LocalDateTime begin, LocalDateTime end)
+            throws IOException {
+        LocalDateTime syncedFrom = store.getSyncedFrom();
+        LocalDateTime syncedUntil = store.getSyncedUntil();
+
+        if (syncedFrom == null) {
+            fetch(begin, end);
+        }
+        else {
+            // Stored ranges stay contiguous: backfill up to the oldest synced date, then catch up from the watermark
+            if (begin.isBefore(syncedFrom)) {
+                fetch(begin, syncedFrom);
+            }
+            if (end.isAfter(syncedUntil)) {
+                fetch(getWatermark(), end);
+            }
+        }
+        return store.query(begin, end);
+    }
+
+    /**
+     * Fetches the transactions completed since the watermark.
+     *
+     * @return the newly fetched transactions
+     * @throws IOException           if fetching fails
+     * @throws IllegalStateException if nothing has been synced yet
+     */
+    public synchronized List<WatTransaction> sync() throws IOException {
+        if (store.getSyncedFrom() == null) {
+            throw new IllegalStateException("Nothing synced yet, call getTransactions(begin) first");
+        }
+        return fetch(getWatermark(), LocalDateTime.now());
+    }
+
+    /**
+     * Returns the point from which the next sync fetches: the newest stored transaction, or the end of the synced range
+     * if no transactions are stored.
+     *
+     * @return watermark, or null if nothing has been synced yet
+     */
+    public synchronized LocalDateTime getWatermark() {
+        LocalDateTime newest = store.getNewest();
+        return newest != null ? newest : store.getSyncedUntil();
+    }
+
+    /**
+     * Returns the stored transactions completed between two dates without going to the network.
+     *
+     * @param begin starting date &amp; time
+     * @param end   ending date &amp; time
+     * @return stored WatTransactions completed between {@code begin} and {@code end}, newest first
+     */
+    public List<WatTransaction> getStoredTransactions(LocalDateTime begin, LocalDateTime end) {
+        return store.query(begin, end);
+    }
+
+    /**
+     * Deletes everything stored for this account.
+     *
+     * @throws IOException if the store cannot be cleared
+     */
+    public synchronized void clear() throws IOException {
+        store.clear();
+    }
+
+    /**
+     * Fetches a range and stores the transactions not already stored. Ranges are inclusive at both ends, so rows in
+     * the boundary second are matched against the stored ones; identical transactions in the same second are counted
+     * rather than collapsed.
+     */
+    private List<WatTransaction> fetch(LocalDateTime begin, LocalDateTime end) throws IOException {
+        List<WatTransaction> fetched = account.fetchTransactions(begin, end);
+
+        Map<WatTransaction, Integer> known = new HashMap<>();
+        for (WatTransaction transaction : store.query(begin, end)) {
+            Integer count = known.get(transaction);
+            known.put(transaction, count == null ? 1 : count + 1);
+        }
+
+        List<WatTransaction> added = new ArrayList<>();
+        for (WatTransaction transaction : fetched) {
+            Integer count = known.get(transaction);
+            if (count == null) {
+                added.add(transaction);
+            }
+            else if (count == 1) {
+                known.remove(transaction);
+            }
+            else {
+                known.put(transaction, count - 1);
+            }
+        }
+
+        store.append(added, begin, end);
+        return added;
+    }
+}
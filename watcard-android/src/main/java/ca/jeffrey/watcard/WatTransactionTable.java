@@ -0,0 +1,394 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneOffset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-oriented collection of transactions. Each field is kept in its own primitive array, types are
+ * dictionary-encoded per table and terminals are stored as {@link WatTerminal} ids, so a row costs a few dozen bytes
+ * instead of a {@code WatTransaction} with its {@code LocalDateTime} and strings. Rows are read by index or through a
+ * reusable {@link Cursor}.
+ * <p>
+ * Dates are stored as epoch seconds of the server's local date &amp; time taken at UTC, and amounts as cents.
+ */
+public class WatTransactionTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+    // Account byte of a row whose account number does not fit, kept in wideAccounts instead
+    private static final byte ACCOUNT_ESCAPE = Byte.MIN_VALUE;
+
+    private int size;
+    private long[] epochSeconds;
+    private int[] amountCents;
+    private byte[] accounts;
+    private int[] units;
+    private int[] typeIds;
+    private int[] terminalIds;
+    // Account numbers that do not fit in a byte, by row
+    private final Map<Integer, Integer> wideAccounts = new HashMap<>();
+
+    // Dictionary of type strings
+    private final List<String> types = new ArrayList<>();
+    private final Map<String, Integer> typeIndex = new HashMap<>();
+
+    public WatTransactionTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity initial number of rows
+     */
+    public WatTransactionTable(int capacity) {
+        capacity = Math.max(capacity, 1);
+        epochSeconds = new long[capacity];
+        amountCents = new int[capacity];
+        accounts = new byte[capacity];
+        units = new int[capacity];
+        typeIds = new int[capacity];
+        terminalIds = new int[capacity];
+    }
+
+    /**
+     * Creates a table holding the given transactions.
+     *
+     * @param transactions transactions to copy
+     * @return new table
+     */
+    public static WatTransactionTable of(List<WatTransaction> transactions) {
+        WatTransactionTable table = new WatTransactionTable(transactions.size());
+        for (WatTransaction transaction : transactions) {
+            table.add(transaction);
+        }
+        return table;
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param epochSecond date &amp; time as epoch seconds at UTC
+     * @param cents       amount in cents
+     * @param account     account number
+     * @param unit        unit
+     * @param type        type of transaction
+     * @param terminal    location of transaction
+     */
+    public void add(long epochSecond, int cents, int account, int unit, String type, String terminal) {
+        if (size == epochSeconds.length) {
+            grow();
+        }
+        epochSeconds[size] = epochSecond;
+        amountCents[size] = cents;
+        if (account > ACCOUNT_ESCAPE && account <= Byte.MAX_VALUE) {
+            accounts[size] = (byte) account;
+        }
+        else {
+            accounts[size] = ACCOUNT_ESCAPE;
+            wideAccounts.put(size, account);
+        }
+        units[size] = unit;
+        typeIds[size] = internType(type);
+        terminalIds[size] = WatTerminal.of(terminal).getId();
+        size++;
+    }
+
+    /**
+     * Appends a transaction.
+     *
+     * @param transaction transaction to copy
+     */
+    public void add(WatTransaction transaction) {
+        add(toEpochSecond(transaction.getDateTime()), Math.round(transaction.getAmount() * 100),
+                transaction.getAccount(), transaction.getUnit(), transaction.getType(), transaction.getTerminal());
+    }
+
+    /**
+     * Appends a row from the cell text of a {@code TransactionsPass} table row.
+     *
+     * @param data cell text in column order
+     * @return false if the row is not a transaction
+     */
+    boolean addRow(List<String> data) {
+        if (data.size() < WatTransaction.COLUMNS) {
+            return false;
+        }
+
+        long epochSecond = WatFieldParser.parseEpochSecond(data.get(0));
+        int cents = WatFieldParser.parseCents(data.get(1));
+        int account = WatFieldParser.parseInt(data.get(2));
+        int unit = WatFieldParser.parseInt(data.get(3));
+        add(epochSecond, cents, account, unit, data.get(4), data.get(5));
+        return true;
+    }
+
+    private void grow() {
+        int capacity = epochSeconds.length * 2;
+        epochSeconds = Arrays.copyOf(epochSeconds, capacity);
+        amountCents = Arrays.copyOf(amountCents, capacity);
+        accounts = Arrays.copyOf(accounts, capacity);
+        units = Arrays.copyOf(units, capacity);
+        typeIds = Arrays.copyOf(typeIds, capacity);
+        terminalIds = Arrays.copyOf(terminalIds, capacity);
+    }
+
+    private int internType(String type) {
+        Integer id = typeIndex.get(type);
+        if (id == null) {
+            id = types.size();
+            types.add(type);
+            typeIndex.put(type, id);
+        }
+        return id;
+    }
+
+    /**
+     * Removes all rows. Capacity and dictionaries are kept.
+     */
+    public void clear() {
+        size = 0;
+        wideAccounts.clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    // Row accessors
+    public long getEpochSecond(int index) {
+        checkIndex(index);
+        return epochSeconds[index];
+    }
+
+    public LocalDateTime getDateTime(int index) {
+        return fromEpochSecond(getEpochSecond(index));
+    }
+
+    public int getAmountCents(int index) {
+        checkIndex(index);
+        return amountCents[index];
+    }
+
+    public float getAmount(int index) {
+        return getAmountCents(index) / 100f;
+    }
+
+    public int getAccount(int index) {
+        checkIndex(index);
+        byte account = accounts[index];
+        return account == ACCOUNT_ESCAPE ? wideAccounts.get(index) : account;
+    }
+
+    public WatBalanceType getBalanceType(int index) {
+        return WatTransaction.balanceTypeOf(getAccount(index));
+    }
+
+    public int getUnit(int index) {
+        checkIndex(index);
+        return units[index];
+    }
+
+    public int getTypeId(int index) {
+        checkIndex(index);
+        return typeIds[index];
+    }
+
+    public String getType(int index) {
+        return types.get(getTypeId(index));
+    }
+
+    public int getTerminalId(int index) {
+        checkIndex(index);
+        return terminalIds[index];
+    }
+
+    public WatTerminal getTerminalEntry(int index) {
+        return WatTerminal.get(getTerminalId(index));
+    }
+
+    public String getTerminal(int index) {
+        return getTerminalEntry(index).getName();
+    }
+
+    public String getCleanTerminal(int index) {
+        return getTerminalEntry(index).getCleanName();
+    }
+
+    /**
+     * Creates a {@code WatTransaction} for a row.
+     *
+     * @param index row index
+     * @return new WatTransaction
+     */
+    public WatTransaction toTransaction(int index) {
+        return new WatTransaction(getDateTime(index), getAmount(index), getAccount(index), getUnit(index),
+                getType(index), getTerminal(index));
+    }
+
+    /**
+     * Creates a {@code WatTransaction} for every row.
+     *
+     * @return list of WatTransaction in row order
+     */
+    public List<WatTransaction> toList() {
+        List<WatTransaction> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(toTransaction(i));
+        }
+        return list;
+    }
+
+    // Dictionaries
+    public int getTypeCount() {
+        return types.size();
+    }
+
+    public String getTypeById(int id) {
+        return types.get(id);
+    }
+
+    /**
+     * Returns a cursor positioned before the first row.
+     *
+     * @return new cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Reusable view of one row at a time, for callers that want {@code WatTransaction}-like access without creating
+     * an object per row.
+     */
+    public class Cursor {
+
+        private int index = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * Advances to the next row.
+         *
+         * @return false if there are no more rows
+         */
+        public boolean next() {
+            if (index + 1 >= size) {
+                index = size;
+                return false;
+            }
+            index++;
+            return true;
+        }
+
+        /**
+         * Moves to a row.
+         *
+         * @param index row index
+         */
+        public void moveTo(int index) {
+            checkIndex(index);
+            this.index = index;
+        }
+
+        /**
+         * Moves back before the first row.
+         */
+        public void reset() {
+            index = -1;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getEpochSecond() {
+            return WatTransactionTable.this.getEpochSecond(index);
+        }
+
+        public LocalDateTime getDateTime() {
+            return WatTransactionTable.this.getDateTime(index);
+        }
+
+        public int getAmountCents() {
+            return WatTransactionTable.this.getAmountCents(index);
+        }
+
+        public float getAmount() {
+            return WatTransactionTable.this.getAmount(index);
+        }
+
+        public int getAccount() {
+            return WatTransactionTable.this.getAccount(index);
+        }
+
+        public WatBalanceType getBalanceType() {
+            return WatTransactionTable.this.getBalanceType(index);
+        }
+
+        public int getUnit() {
+            return WatTransactionTable.this.getUnit(index);
+        }
+
+        public int getTypeId() {
+            return WatTransactionTable.this.getTypeId(index);
+        }
+
+        public String getType() {
+            return WatTransactionTable.this.getType(index);
+        }
+
+        public int getTerminalId() {
+            return WatTransactionTable.this.getTerminalId(index);
+        }
+
+        public WatTerminal getTerminalEntry() {
+            return WatTransactionTable.this.getTerminalEntry(index);
+        }
+
+        public String getTerminal() {
+            return WatTransactionTable.this.getTerminal(index);
+        }
+
+        public String getCleanTerminal() {
+            return WatTransactionTable.this.getCleanTerminal(index);
+        }
+
+        public boolean isFlex() {
+            return WatTransaction.isFlex(getBalanceType());
+        }
+
+        public boolean isMeal() {
+            return WatTransaction.isMeal(getBalanceType());
+        }
+
+        public WatTransaction toTransaction() {
+            return WatTransactionTable.this.toTransaction(index);
+        }
+    }
+
+    // Server-local date & times are stored at UTC
+    static long toEpochSecond(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    static LocalDateTime fromEpochSecond(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+    }
+}
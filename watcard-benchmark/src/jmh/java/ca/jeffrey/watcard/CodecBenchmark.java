@@ -0,0 +1,76 @@
+package ca.jeffrey.watcard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding all rows of {@code transactions.html} with {@link WatCodec}, against Java serialization of
+ * the same list. The encoded sizes are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+
+    private ArrayList<WatTransaction> transactions;
+    private byte[] encoded;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        transactions = new ArrayList<>();
+        for (List<String> row : Fixtures.transactionRows()) {
+            transactions.add(WatTransaction.fromRow(row));
+        }
+        encoded = WatCodec.encodeTransactions(transactions);
+        serialized = serialize();
+        System.out.printf("%n%d transactions: codec %d bytes, serializable %d bytes%n",
+                transactions.size(), encoded.length, serialized.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return WatCodec.encodeTransactions(transactions);
+    }
+
+    @Benchmark
+    public List<WatTransaction> decode() throws IOException {
+        return WatCodec.decodeTransactions(encoded);
+    }
+
+    // Baseline for encode
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(transactions);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // Baseline for decode
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            return in.readObject();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ca.jeffrey.watcard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneOffset;
+import org.threeten.bp.format.DateTimeParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-row work: turning cell text into a transaction, parsing amounts and dates on their own, and the display helpers
+ * called for every row of a transaction list. Each operation covers all rows of {@code transactions.html}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FieldParseBenchmark {
+
+    // Dates the fast path must hand to the strict parser, which rejects them
+    private static final String[] MALFORMED_DATES = {
+            "11/28/20x7 6:41:19 PM",
+            "11/28/2017 6:4x:19 PM",
+            "11/28/2017 6:41:1x PM",
+            "1x/28/2017 6:41:19 PM",
+            "11/28/2017 x:41:19 PM",
+            "11/28/2017 6:41:19 XM",
+    };
+
+    private List<List<String>> rows;
+    private List<String> amounts;
+    private List<String> dates;
+    private List<WatTransaction> transactions;
+    private WatTransactionTable table;
+
+    @Setup
+    public void setUp() {
+        rows = Fixtures.transactionRows();
+        amounts = new ArrayList<>();
+        dates = new ArrayList<>();
+        transactions = new ArrayList<>();
+        for (List<String> row : rows) {
+            dates.add(row.get(0));
+            amounts.add(row.get(1));
+            transactions.add(WatTransaction.fromRow(row));
+        }
+        table = new WatTransactionTable(rows.size());
+        checkDates();
+    }
+
+    // The fast date parser must agree with the formatter on the fixture and fall back to it on malformed input
+    private void checkDates() {
+        for (String date : dates) {
+            long expected = LocalDateTime.parse(date, WatTransaction.RESPONSE_FORMAT).toEpochSecond(ZoneOffset.UTC);
+            if (WatFieldParser.parseEpochSecond(date) != expected) {
+                throw new IllegalStateException("Wrong epoch second for " + date);
+            }
+        }
+        for (String date : MALFORMED_DATES) {
+            try {
+                long epochSecond = WatFieldParser.parseEpochSecond(date);
+                throw new IllegalStateException("Parsed malformed date " + date + " as " + epochSecond);
+            }
+            catch (DateTimeParseException expected) {
+                // Rejected by the strict parser
+            }
+        }
+    }
+
+    @Benchmark
+    public void fromRow(Blackhole blackhole) {
+        for (List<String> row : rows) {
+            blackhole.consume(WatTransaction.fromRow(row));
+        }
+    }
+
+    @Benchmark
+    public WatTransactionTable addRow() {
+        table.clear();
+        for (List<String> row : rows) {
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    @Benchmark
+    public void parseAmount(Blackhole blackhole) {
+        for (String amount : amounts) {
+            blackhole.consume(WatFieldParser.parseCents(amount));
+        }
+    }
+
+    // Baseline for parseAmount: the regex and float parsing used before WatFieldParser
+    @Benchmark
+    public void parseAmountRegex(Blackhole blackhole) {
+        for (String amount : amounts) {
+            blackhole.consume(Float.parseFloat(amount.replaceAll("[$,]", "")));
+        }
+    }
+
+    @Benchmark
+    public void parseDate(Blackhole blackhole) {
+        for (String date : dates) {
+            blackhole.consume(WatFieldParser.parseEpochSecond(date));
+        }
+    }
+
+    // Baseline for parseDate: the general DateTimeFormatter used before WatFieldParser
+    @Benchmark
+    public void parseDateFormatter(Blackhole blackhole) {
+        for (String date : dates) {
+            blackhole.consume(LocalDateTime.parse(date, WatTransaction.RESPONSE_FORMAT));
+        }
+    }
+
+    @Benchmark
+    public void getCleanTerminal(Blackhole blackhole) {
+        for (WatTransaction transaction : transactions) {
+            blackhole.consume(transaction.getCleanTerminal());
+        }
+    }
+
+    @Benchmark
+    public void getTimeString(Blackhole blackhole) {
+        for (WatTransaction transaction : transactions) {
+            blackhole.consume(transaction.getTimeString());
+        }
+    }
+}
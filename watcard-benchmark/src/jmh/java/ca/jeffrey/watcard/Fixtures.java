@@ -0,0 +1,165 @@
+package ca.jeffrey.watcard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Synthetic WatCard pages for the benchmarks, and a client that serves them instead of going to the network.
+ * <p>
+ * The pages under {@code fixtures/} follow the structure of the real LogOn, Personal, Balances and TransactionsPass
+ * pages. Larger transaction pages are built by repeating the rows of {@code transactions.html}.
+ */
+final class Fixtures {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final MediaType HTML = MediaType.parse("text/html; charset=utf-8");
+
+    private Fixtures() {
+    }
+
+    /**
+     * Reads a fixture page.
+     *
+     * @param name file name under {@code fixtures/}
+     * @return page bytes
+     */
+    static byte[] load(String name) {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) {
+            throw new IllegalArgumentException("No fixture " + name);
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+            return out.toByteArray();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Builds a TransactionsPass page with {@code rows} rows, cycling through the rows of {@code transactions.html}.
+     *
+     * @param rows number of rows
+     * @return page bytes
+     */
+    static byte[] transactionsPage(int rows) {
+        String page = new String(load("transactions.html"), UTF_8);
+        int bodyStart = page.indexOf("<tbody>") + "<tbody>".length();
+        int bodyEnd = page.indexOf("</tbody>");
+
+        List<String> samples = new ArrayList<>();
+        for (String row : page.substring(bodyStart, bodyEnd).split("</tr>")) {
+            if (row.contains("<tr>")) {
+                samples.add(row.trim() + "</tr>\n");
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(page.length() + rows * 128);
+        sb.append(page, 0, bodyStart).append('\n');
+        for (int i = 0; i < rows; i++) {
+            sb.append("        ").append(samples.get(i % samples.size()));
+        }
+        sb.append("        ").append(page, bodyEnd, page.length());
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Parses the cells of every row of {@code transactions.html}.
+     *
+     * @return cell text of each row, in column order
+     */
+    static List<List<String>> transactionRows() {
+        final List<List<String>> rows = new ArrayList<>();
+        try {
+            WatTableParser.parse(new okio.Buffer().write(load("transactions.html")),
+                    new WatTableParser.RowHandler() {
+                        @Override
+                        public boolean onRow(List<String> cells) {
+                            rows.add(new ArrayList<>(cells));
+                            return true;
+                        }
+                    });
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return rows;
+    }
+
+    /**
+     * Page server that answers every request with a fixture, chosen by the request path.
+     */
+    static class Server implements Interceptor {
+        private final ConcurrentHashMap<String, byte[]> pages = new ConcurrentHashMap<>();
+
+        Server() {
+            pages.put("/OneWeb/Account/LogOn", load("logon.html"));
+            pages.put("/OneWeb/Account/Personal", load("personal.html"));
+            pages.put("/OneWeb/Financial/Balances", load("balances.html"));
+            pages.put("/OneWeb/Financial/TransactionsPass", load("transactions.html"));
+        }
+
+        void setPage(String path, byte[] page) {
+            pages.put(path, page);
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            byte[] page = pages.get(request.url().encodedPath());
+            if (page == null) {
+                throw new IOException("No fixture for " + request.url());
+            }
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("OK")
+                    .body(ResponseBody.create(HTML, page))
+                    .build();
+        }
+
+        /**
+         * @return client whose requests are answered by this server
+         */
+        OkHttpClient client() {
+            return new OkHttpClient.Builder()
+                    .addInterceptor(this)
+                    .build();
+        }
+    }
+
+    /**
+     * Creates an account whose requests are answered by {@code server}. The fixtures do not check cookies, so the
+     * account is not logged in.
+     *
+     * @param server fixture server
+     * @return account
+     */
+    static WatAccount account(Server server) {
+        WatAccount account = new WatAccount(new WatSession(server.client()), "20012345", "password");
+        account.getSession().getVerificationToken();
+        return account;
+    }
+}
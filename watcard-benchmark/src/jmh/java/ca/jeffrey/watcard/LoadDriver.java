@@ -0,0 +1,183 @@
+package ca.jeffrey.watcard;
+
+import org.threeten.bp.LocalDateTime;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+/**
+ * Simulates many accounts using the library at once and reports throughput and latency percentiles per operation.
+ * Each simulated account gets its own session, logs in, then loads its balances, personal information and recent
+ * transactions for a number of rounds. Runs against a {@link WatStandInServer} started in-process unless a base URL is
+ * given.
+ * <p>
+ * Options, all optional: {@code --accounts N} simulated accounts (50), {@code --rounds N} rounds per account (5),
+ * {@code --latency MIN-MAX} stand-in server latency in ms (20-80), {@code --days N} days of transactions per request
+ * (30), {@code --rows-per-day N} stand-in transactions per day (8), {@code --url URL} server to use instead of the
+ * stand-in, {@code --password P} password for every account (password), {@code --capacity N} concurrent requests the
+ * stand-in serves before answering 429 (unlimited), {@code --scheduler true} to send requests through a
+ * {@link WatScheduler} (false).
+ * <p>
+ * Run with {@code ./gradlew :watcard-benchmark:loadTest -PloadTestArgs="--accounts 100"}.
+ */
+public class LoadDriver {
+
+    private static final String[] OPERATIONS = {"login", "balances", "personal", "transactions"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int accounts = Integer.parseInt(option(options, "accounts", "50"));
+        final int rounds = Integer.parseInt(option(options, "rounds", "5"));
+        final int days = Integer.parseInt(option(options, "days", "30"));
+        final String password = option(options, "password", "password");
+        String[] latency = option(options, "latency", "20-80").split("-");
+
+        WatStandInServer server = null;
+        String baseUrl = options.get("url");
+        if (baseUrl == null) {
+            server = new WatStandInServer(0);
+            server.setLatency(Long.parseLong(latency[0]), Long.parseLong(latency[latency.length - 1]),
+                    TimeUnit.MILLISECONDS);
+            server.setRowsPerDay(Integer.parseInt(option(options, "rows-per-day", "8")));
+            server.setPassword(password);
+            if (options.containsKey("capacity")) {
+                server.setCapacity(Integer.parseInt(options.get("capacity")));
+            }
+            server.start();
+            baseUrl = server.getBaseUrl();
+        }
+
+        // One pool sized for every account, as the app would share one client
+        OkHttpClient pooled = WatHttpClient.create(accounts, WatHttpClient.DEFAULT_KEEP_ALIVE_SECONDS,
+                WatHttpClient.DEFAULT_CONNECT_TIMEOUT_SECONDS, WatHttpClient.DEFAULT_READ_TIMEOUT_SECONDS,
+                WatHttpClient.DEFAULT_WRITE_TIMEOUT_SECONDS);
+        pooled.dispatcher().setMaxRequests(Math.max(64, accounts * 2));
+        pooled.dispatcher().setMaxRequestsPerHost(Math.max(5, accounts * 2));
+        WatScheduler scheduler = null;
+        if (Boolean.parseBoolean(option(options, "scheduler", "false"))) {
+            scheduler = new WatScheduler();
+            scheduler.setRate(0, 1);
+            scheduler.setConcurrency(4, 1, accounts);
+            pooled = scheduler.apply(pooled);
+        }
+        final OkHttpClient client = pooled;
+
+        final Map<String, WatHistogram> histograms = new LinkedHashMap<>();
+        for (String operation : OPERATIONS) {
+            histograms.put(operation, new WatHistogram());
+        }
+        final WatMetricsRecorder metrics = new WatMetricsRecorder();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+
+        System.out.printf("Running %d accounts x %d rounds against %s%n", accounts, rounds, baseUrl);
+
+        ExecutorService pool = Executors.newFixedThreadPool(accounts);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(accounts);
+        final String url = baseUrl;
+        for (int i = 0; i < accounts; i++) {
+            final String accountNumber = String.valueOf(20000000 + i);
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        simulate(client, url, accountNumber, password, rounds, days, histograms, metrics, failures,
+                                rows);
+                    }
+                    catch (Exception e) {
+                        failures.incrementAndGet();
+                        e.printStackTrace();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        pool.shutdown();
+        if (server != null) {
+            server.stop();
+        }
+
+        long operations = 0;
+        for (WatHistogram histogram : histograms.values()) {
+            operations += histogram.getCount();
+        }
+        System.out.printf("%nElapsed %.2f s, %d operations, %.1f ops/s, %d rows, %d failures%n%n", seconds,
+                operations, operations / seconds, rows.get(), failures.get());
+        System.out.printf("%-13s %8s %9s %9s %9s %9s%n", "operation", "count", "p50 ms", "p90 ms", "p99 ms",
+                "max ms");
+        for (Map.Entry<String, WatHistogram> entry : histograms.entrySet()) {
+            WatHistogram histogram = entry.getValue();
+            System.out.printf("%-13s %8d %9.1f %9.1f %9.1f %9.1f%n", entry.getKey(), histogram.getCount(),
+                    histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6, histogram.getMax() / 1e6);
+        }
+        if (server != null) {
+            System.out.printf("%nRejected by the stand-in: %d%n", server.getRejectedCount());
+        }
+        if (scheduler != null) {
+            System.out.printf("Scheduler limit: %d%n", scheduler.getLimit(HttpUrl.parse(url).host()));
+        }
+        System.out.printf("%nPer endpoint:%n%s", metrics);
+        System.exit(failures.get() == 0 ? 0 : 1);
+    }
+
+    private static void simulate(OkHttpClient client, String baseUrl, String accountNumber, String password,
+                                 int rounds, int days, Map<String, WatHistogram> histograms,
+                                 WatMetricsRecorder metrics, AtomicLong failures, AtomicLong rows) throws Exception {
+        WatSession session = new WatSession(client, baseUrl);
+        session.setMetrics(metrics);
+        WatAccount account = new WatAccount(session, accountNumber, password);
+
+        long start = System.nanoTime();
+        int code = account.login();
+        histograms.get("login").record(System.nanoTime() - start);
+        if (code < 200 || code >= 300) {
+            throw new IllegalStateException("Login failed for " + accountNumber + ": " + code);
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            start = System.nanoTime();
+            account.loadBalances(true);
+            histograms.get("balances").record(System.nanoTime() - start);
+            if (account.getBalances().isEmpty()) {
+                failures.incrementAndGet();
+            }
+
+            start = System.nanoTime();
+            account.loadPersonalInfo(true);
+            histograms.get("personal").record(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<WatTransaction> transactions = account.getTransactions(LocalDateTime.now().minusDays(days),
+                    LocalDateTime.now());
+            histograms.get("transactions").record(System.nanoTime() - start);
+            rows.addAndGet(transactions.size());
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
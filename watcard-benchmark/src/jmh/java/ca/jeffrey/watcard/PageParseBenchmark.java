@@ -0,0 +1,46 @@
+package ca.jeffrey.watcard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the Balances and Personal pages. Caches are disabled, so every call parses a response from
+ * {@link Fixtures.Server}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PageParseBenchmark {
+
+    private WatAccount account;
+
+    @Setup
+    public void setUp() {
+        account = Fixtures.account(new Fixtures.Server());
+
+        account.loadBalances();
+        if (account.getBalances().size() != 12) {
+            throw new IllegalStateException("Balances fixture did not parse");
+        }
+    }
+
+    @Benchmark
+    public List<WatBalance> loadBalances() {
+        account.loadBalances(true);
+        return account.getBalances();
+    }
+
+    @Benchmark
+    public String loadPersonalInfo() {
+        account.loadPersonalInfo(true);
+        return account.getName();
+    }
+}
@@ -0,0 +1,69 @@
+package ca.jeffrey.watcard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.threeten.bp.LocalDateTime;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of TransactionsPass pages of increasing size, from the response body to a list of {@code WatTransaction}
+ * or a {@code WatTransactionTable}, and through a {@code WatTransactionQuery} matching one row in ten. Responses come
+ * from {@link Fixtures.Server}, so no time is spent on the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransactionParseBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "50000"})
+    public int rows;
+
+    private WatAccount account;
+    private String url;
+    private WatTransactionTable table;
+    private WatTransactionQuery query;
+
+    @Setup
+    public void setUp() {
+        Fixtures.Server server = new Fixtures.Server();
+        server.setPage("/OneWeb/Financial/TransactionsPass", Fixtures.transactionsPage(rows));
+        account = Fixtures.account(server);
+        url = account.transactionsUrl(LocalDateTime.of(2017, 9, 1, 0, 0), LocalDateTime.of(2017, 12, 31, 0, 0), 0);
+        table = new WatTransactionTable(rows);
+        query = new WatTransactionQuery()
+                .between(LocalDateTime.of(2017, 9, 1, 0, 0), LocalDateTime.of(2017, 12, 31, 0, 0))
+                .terminals("REV");
+
+        if (account.getTransactions(url).size() != rows) {
+            throw new IllegalStateException("Fixture did not parse to " + rows + " rows");
+        }
+        if (account.getTransactions(query).size() != rows / 10) {
+            throw new IllegalStateException("Query did not match " + rows / 10 + " rows");
+        }
+    }
+
+    @Benchmark
+    public List<WatTransaction> getTransactions() {
+        return account.getTransactions(url);
+    }
+
+    @Benchmark
+    public WatTransactionTable loadTransactions() {
+        table.clear();
+        account.loadTransactions(url, table);
+        return table;
+    }
+
+    @Benchmark
+    public List<WatTransaction> getTransactionsQuery() {
+        return account.getTransactions(query);
+    }
+}
@@ -0,0 +1,420 @@
+package ca.jeffrey.watcard;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneOffset;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the WatCard site, for running {@code WatSession} and {@code WatAccount} against a server whose
+ * latency is known. Serves the LogOn, Personal, Balances and TransactionsPass pages with the structure of
+ * {@link Fixtures}, and behaves like the real site where the library depends on it:
+ * <ul>
+ * <li>the LogOn page sets a verification token cookie and form field, and logging in checks both along with the
+ * password</li>
+ * <li>the other pages require the session cookie set by logging in, and redirect to the LogOn page once it is missing
+ * or expired</li>
+ * <li>TransactionsPass honours {@code dateFrom}, {@code dateTo} and {@code returnRows}, newest first</li>
+ * <li>the account photo carries an {@code ETag} and is answered with 304 when the client has it</li>
+ * </ul>
+ * Every account accepts the same password. A capacity can be set to answer excess concurrent requests with 429.
+ */
+public class WatStandInServer {
+
+    private static final String TOKEN_COOKIE = "__RequestVerificationToken";
+    private static final String SESSION_COOKIE = "ASP.NET_SessionId";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Photo linked from the Personal page fixture
+    private static final String PHOTO_PATH = "/OneWeb/Photo/Get";
+    private static final String PHOTO_ETAG = "\"photo-1\"";
+    private static final String PHOTO_LAST_MODIFIED = "Mon, 04 Sep 2017 12:00:00 GMT";
+    private static final byte[] PHOTO = photo();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final byte[] logOnPage = Fixtures.load("logon.html");
+    private final byte[] personalPage = Fixtures.load("personal.html");
+    private final byte[] balancesPage = Fixtures.load("balances.html");
+    private final String transactionsPage = new String(Fixtures.load("transactions.html"), Fixtures.UTF_8);
+    private final List<List<String>> sampleRows = Fixtures.transactionRows();
+
+    // Session id to expiry time in nanoTime
+    private final Map<String, Long> sessions = new ConcurrentHashMap<>();
+
+    private volatile String password = "password";
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile long sessionTtlNanos = TimeUnit.MINUTES.toNanos(20);
+    private volatile int rowsPerDay = 8;
+    private volatile int capacity = Integer.MAX_VALUE;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong photoDownloads = new AtomicLong();
+
+    /**
+     * Creates a server listening on {@code localhost}.
+     *
+     * @param port port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public WatStandInServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (active.incrementAndGet() > capacity) {
+                        // Overloaded, like a throttling front end
+                        rejected.incrementAndGet();
+                        exchange.getResponseHeaders().add("Retry-After", "1");
+                        send(exchange, 429, "Too many requests".getBytes(Fixtures.UTF_8));
+                        return;
+                    }
+                    delay();
+                    route(exchange);
+                }
+                finally {
+                    active.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return base URL to pass to {@link WatSession#WatSession(okhttp3.OkHttpClient, String)}
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param password password accepted for every account
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Delays every response by a random time in {@code [min, max]}.
+     *
+     * @param min  shortest delay
+     * @param max  longest delay
+     * @param unit unit of {@code min} and {@code max}
+     */
+    public void setLatency(long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid latency range");
+        }
+        minLatencyMillis = unit.toMillis(min);
+        maxLatencyMillis = unit.toMillis(max);
+    }
+
+    /**
+     * @param ttl  time after logging in at which a session expires
+     * @param unit unit of {@code ttl}
+     */
+    public void setSessionTtl(long ttl, TimeUnit unit) {
+        sessionTtlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Expires every session right away.
+     */
+    public void expireSessions() {
+        sessions.clear();
+    }
+
+    /**
+     * @param rowsPerDay number of transactions on every day
+     */
+    public void setRowsPerDay(int rowsPerDay) {
+        if (rowsPerDay < 1) {
+            throw new IllegalArgumentException("rowsPerDay < 1");
+        }
+        this.rowsPerDay = rowsPerDay;
+    }
+
+    /**
+     * Answers requests beyond {@code capacity} concurrent ones with 429 and {@code Retry-After: 1}.
+     *
+     * @param capacity requests served at once
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return number of requests answered with 429
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private void delay() {
+        long min = minLatencyMillis;
+        long max = maxLatencyMillis;
+        if (max == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> cookies = cookies(exchange);
+
+        if (path.equalsIgnoreCase(WatSession.LOGIN_PATH)) {
+            if (exchange.getRequestMethod().equals("POST")) {
+                logIn(exchange, cookies);
+            }
+            else {
+                sendLogOnPage(exchange);
+            }
+            return;
+        }
+
+        String session = cookies.get(SESSION_COOKIE);
+        Long expiry = session == null ? null : sessions.get(session);
+        if (expiry == null || expiry - System.nanoTime() < 0) {
+            if (session != null) {
+                sessions.remove(session);
+            }
+            exchange.getResponseHeaders().add("Location", WatSession.LOGIN_PATH + "?ReturnUrl="
+                    + URLEncoder.encode(path, "UTF-8"));
+            send(exchange, 302, new byte[0]);
+            return;
+        }
+
+        if (path.equalsIgnoreCase("/OneWeb/Account/Personal")) {
+            send(exchange, 200, personalPage);
+        }
+        else if (path.equalsIgnoreCase("/OneWeb/Financial/Balances")) {
+            send(exchange, 200, balancesPage);
+        }
+        else if (path.equalsIgnoreCase(WatAccount.TRANSACTIONS_PATH)) {
+            sendTransactions(exchange);
+        }
+        else if (path.equalsIgnoreCase(PHOTO_PATH)) {
+            sendPhoto(exchange);
+        }
+        else {
+            send(exchange, 404, "Not found".getBytes(Fixtures.UTF_8));
+        }
+    }
+
+    // Sets a new token cookie and renders the same token in the form
+    private void sendLogOnPage(HttpExchange exchange) throws IOException {
+        String token = Long.toHexString(RANDOM.nextLong()) + Long.toHexString(RANDOM.nextLong());
+        exchange.getResponseHeaders().add("Set-Cookie", TOKEN_COOKIE + "=" + token + "; path=/; HttpOnly");
+        String page = new String(logOnPage, Fixtures.UTF_8)
+                .replaceFirst("name=\"__RequestVerificationToken\" type=\"hidden\" value=\"[^\"]*\"",
+                        "name=\"__RequestVerificationToken\" type=\"hidden\" value=\"" + token + "\"");
+        send(exchange, 200, page.getBytes(Fixtures.UTF_8));
+    }
+
+    private void logIn(HttpExchange exchange, Map<String, String> cookies) throws IOException {
+        Map<String, String> form = parseQuery(new String(readBody(exchange.getRequestBody()), Fixtures.UTF_8));
+        String token = form.get(TOKEN_COOKIE);
+
+        boolean valid = token != null && token.equals(cookies.get(TOKEN_COOKIE))
+                && form.get("Account") != null && password.equals(form.get("Password"));
+        if (!valid) {
+            // The real site shows the LogOn page again
+            sendLogOnPage(exchange);
+            return;
+        }
+
+        String session = Long.toHexString(RANDOM.nextLong()) + Long.toHexString(RANDOM.nextLong());
+        sessions.put(session, System.nanoTime() + sessionTtlNanos);
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session + "; path=/; HttpOnly");
+        exchange.getResponseHeaders().add("Location", "/OneWeb/Account/Personal");
+        send(exchange, 302, new byte[0]);
+    }
+
+    // Transactions are spread evenly over each day, so any date range always returns the same rows
+    private void sendTransactions(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseRawQuery(exchange.getRequestURI().getRawQuery());
+        long from = toEpochSecond(query.get("dateFrom"));
+        long to = toEpochSecond(query.get("dateTo"));
+        int limit = query.containsKey("returnRows") ? Integer.parseInt(query.get("returnRows")) : 0;
+
+        int bodyStart = transactionsPage.indexOf("<tbody>") + "<tbody>".length();
+        int bodyEnd = transactionsPage.indexOf("</tbody>");
+        StringBuilder sb = new StringBuilder(transactionsPage.length() + 4096);
+        sb.append(transactionsPage, 0, bodyStart).append('\n');
+
+        long interval = 86400 / rowsPerDay;
+        int rows = 0;
+        for (long slot = floorDiv(to, interval); slot * interval >= from; slot--) {
+            if (limit > 0 && rows == limit) {
+                break;
+            }
+            List<String> sample = sampleRows.get((int) (slot % sampleRows.size()));
+            String date = WatTransaction.RESPONSE_FORMAT.format(
+                    LocalDateTime.ofEpochSecond(slot * interval, 0, ZoneOffset.UTC));
+            sb.append("        <tr><td>").append(date).append("</td>");
+            for (int column = 1; column < WatTransaction.COLUMNS; column++) {
+                sb.append("<td>").append(sample.get(column)).append("</td>");
+            }
+            sb.append("</tr>\n");
+            rows++;
+        }
+
+        sb.append("        ").append(transactionsPage, bodyEnd, transactionsPage.length());
+        send(exchange, 200, sb.toString().getBytes(Fixtures.UTF_8));
+    }
+
+    // Answers 304 when the client already has the photo, like the real site's static files
+    private void sendPhoto(HttpExchange exchange) throws IOException {
+        String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (PHOTO_ETAG.equals(etag)) {
+            exchange.getResponseHeaders().add("ETag", PHOTO_ETAG);
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        photoDownloads.incrementAndGet();
+        exchange.getResponseHeaders().add("ETag", PHOTO_ETAG);
+        exchange.getResponseHeaders().add("Last-Modified", PHOTO_LAST_MODIFIED);
+        send(exchange, 200, "image/jpeg", PHOTO);
+    }
+
+    /**
+     * @return number of times the photo was sent in full
+     */
+    public long getPhotoDownloadCount() {
+        return photoDownloads.get();
+    }
+
+    // JPEG header of a 480x640 image padded to the size of a real photo; enough for reading its dimensions
+    private static byte[] photo() {
+        byte[] photo = new byte[48 * 1024];
+        byte[] header = {
+                (byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00, 0x01, 0x01, 0x00, 0x00, 0x01, 0x00,
+                0x01, 0x00, 0x00,
+                (byte) 0xFF, (byte) 0xC0, 0x00, 0x11, 0x08, 0x02, (byte) 0x80, 0x01, (byte) 0xE0, 0x03
+        };
+        System.arraycopy(header, 0, photo, 0, header.length);
+        photo[photo.length - 2] = (byte) 0xFF;
+        photo[photo.length - 1] = (byte) 0xD9;
+        return photo;
+    }
+
+    private static long toEpochSecond(String date) {
+        return LocalDateTime.parse(date, WatTransaction.DATE_FORMAT).toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y < 0) ? q - 1 : q;
+    }
+
+    private static void send(HttpExchange exchange, int code, byte[] body) throws IOException {
+        send(exchange, code, "text/html; charset=utf-8", body);
+    }
+
+    private static void send(HttpExchange exchange, int code, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> cookies(HttpExchange exchange) {
+        Map<String, String> cookies = new HashMap<>();
+        List<String> headers = exchange.getRequestHeaders().get("Cookie");
+        if (headers == null) {
+            return cookies;
+        }
+        for (String header : headers) {
+            for (String pair : header.split(";")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    cookies.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+                }
+            }
+        }
+        return cookies;
+    }
+
+    // Decodes a form body
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, String> entry : parseRawQuery(query).entrySet()) {
+            values.put(URLDecoder.decode(entry.getKey(), "UTF-8"), URLDecoder.decode(entry.getValue(), "UTF-8"));
+        }
+        return values;
+    }
+
+    // Splits a query without decoding it, as the TransactionsPass dates contain a literal '+'
+    private static Map<String, String> parseRawQuery(String query) {
+        Map<String, String> values = new HashMap<>();
+        if (query == null) {
+            return values;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                values.put(pair.substring(0, equals), pair.substring(equals + 1));
+            }
+        }
+        return values;
+    }
+}